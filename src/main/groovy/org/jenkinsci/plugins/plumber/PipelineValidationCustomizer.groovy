@@ -0,0 +1,277 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.plumber
+
+import org.codehaus.groovy.ast.ClassCodeVisitorSupport
+import org.codehaus.groovy.ast.ClassHelper
+import org.codehaus.groovy.ast.ClassNode
+import org.codehaus.groovy.ast.ImportNode
+import org.codehaus.groovy.ast.ModuleNode
+import org.codehaus.groovy.ast.expr.ArgumentListExpression
+import org.codehaus.groovy.ast.expr.BinaryExpression
+import org.codehaus.groovy.ast.expr.ClassExpression
+import org.codehaus.groovy.ast.expr.ClosureExpression
+import org.codehaus.groovy.ast.expr.Expression
+import org.codehaus.groovy.ast.expr.MethodCallExpression
+import org.codehaus.groovy.ast.expr.PropertyExpression
+import org.codehaus.groovy.ast.expr.TupleExpression
+import org.codehaus.groovy.ast.expr.VariableExpression
+import org.codehaus.groovy.classgen.GeneratorContext
+import org.codehaus.groovy.control.CompilePhase
+import org.codehaus.groovy.control.SourceUnit
+import org.codehaus.groovy.control.customizers.CompilationCustomizer
+import org.codehaus.groovy.syntax.SyntaxException
+import org.codehaus.groovy.syntax.Types
+import org.jenkinsci.plugins.plumber.model.PipelineScriptValidator
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.Whitelisted
+
+/**
+ * Checks inline Pipeline blocks for invalid steps when the script containing them is compiled, failing compilation
+ * if any are found. This means we never need to run the user's code to validate it.
+ *
+ * Blocks that pass have their closure wrapped in a call to {@link #validated}, so that "pipeline { ... }" becomes
+ * "pipeline(PipelineValidationCustomizer.validated({ ... }))", which remembers the resulting closure object. Anything
+ * translating the configuration can then tell which closures were checked here and which - e.g., closures passed in
+ * as variables - still need checking. Scripts referring to this class themselves fail to compile, so only closures
+ * that really were checked get remembered.
+ */
+public class PipelineValidationCustomizer extends CompilationCustomizer {
+    // Closures are compared by identity, and forgotten once nothing else refers to them.
+    private static final Map<Closure, Boolean> VALIDATED =
+        Collections.synchronizedMap(new WeakHashMap<Closure, Boolean>())
+
+    private final boolean plumberCallsOnly
+
+    /**
+     * @param plumberCallsOnly If true, only check "pipeline" blocks within a "plumber" call, or within a closure
+     *     assigned to a variable that's passed to a "plumber" call - i.e., in a Jenkinsfile, where "pipeline" could
+     *     mean something else entirely. If false, check every "pipeline" block, for when the whole script is plumber
+     *     configuration.
+     */
+    public PipelineValidationCustomizer(boolean plumberCallsOnly) {
+        super(CompilePhase.CONVERSION)
+        this.plumberCallsOnly = plumberCallsOnly
+    }
+
+    /**
+     * Remembers an inline Pipeline closure as checked. Only called from code added by this customizer.
+     *
+     * @param closure
+     * @return the same closure
+     */
+    @Whitelisted
+    public static Closure validated(Closure closure) {
+        VALIDATED.put(closure, Boolean.TRUE)
+        return closure
+    }
+
+    /**
+     * Whether the given closure came from an inline Pipeline block this customizer checked.
+     *
+     * @param closure
+     * @return true if the closure has already been validated.
+     */
+    @Whitelisted
+    public static boolean isValidated(Object closure) {
+        return closure instanceof Closure && VALIDATED.containsKey(closure)
+    }
+
+    @Override
+    public void call(SourceUnit source, GeneratorContext context, ClassNode classNode) {
+        if (classNode.isScript()) {
+            checkImports(source)
+        }
+
+        PlumberVariableFinder finder = new PlumberVariableFinder(source)
+        finder.visitClass(classNode)
+        new InlinePipelineVisitor(source, plumberCallsOnly, finder.plumberVariables).visitClass(classNode)
+    }
+
+    private void checkImports(SourceUnit source) {
+        ModuleNode module = source.getAST()
+        List<ImportNode> imports = []
+        imports.addAll(module.getImports())
+        imports.addAll(module.getStaticImports().values())
+        imports.addAll(module.getStaticStarImports().values())
+
+        for (ImportNode importNode : imports) {
+            if (importNode.getType()?.getName() == PipelineValidationCustomizer.class.getName()) {
+                source.addError(new SyntaxException(
+                    "${PipelineValidationCustomizer.class.getSimpleName()} can't be used in scripts".toString(),
+                    importNode.getLineNumber(), importNode.getColumnNumber()))
+            }
+        }
+    }
+
+    private static boolean isPlumberCall(MethodCallExpression call) {
+        if (call.isImplicitThis()) {
+            return call.getMethodAsString() == "plumber"
+        } else {
+            // i.e., plumber.call(...) or plumber.resume(...)
+            return call.getObjectExpression() instanceof VariableExpression &&
+                ((VariableExpression) call.getObjectExpression()).getName() == "plumber"
+        }
+    }
+
+    /**
+     * Finds the names of variables passed to "plumber" calls, so that closures assigned to them can be treated as
+     * plumber configuration too.
+     */
+    private static class PlumberVariableFinder extends ClassCodeVisitorSupport {
+        private final SourceUnit sourceUnit
+        final Set<String> plumberVariables = new HashSet<String>()
+
+        PlumberVariableFinder(SourceUnit sourceUnit) {
+            this.sourceUnit = sourceUnit
+        }
+
+        @Override
+        protected SourceUnit getSourceUnit() {
+            return sourceUnit
+        }
+
+        @Override
+        public void visitMethodCallExpression(MethodCallExpression call) {
+            if (isPlumberCall(call) && call.getArguments() instanceof TupleExpression) {
+                for (Expression arg : ((TupleExpression) call.getArguments()).getExpressions()) {
+                    if (arg instanceof VariableExpression) {
+                        plumberVariables.add(((VariableExpression) arg).getName())
+                    }
+                }
+            }
+            super.visitMethodCallExpression(call)
+        }
+    }
+
+    private static class InlinePipelineVisitor extends ClassCodeVisitorSupport {
+        private final SourceUnit sourceUnit
+        private final boolean plumberCallsOnly
+        private final Set<String> plumberVariables
+        private int plumberDepth = 0
+
+        InlinePipelineVisitor(SourceUnit sourceUnit, boolean plumberCallsOnly, Set<String> plumberVariables) {
+            this.sourceUnit = sourceUnit
+            this.plumberCallsOnly = plumberCallsOnly
+            this.plumberVariables = plumberVariables
+        }
+
+        @Override
+        protected SourceUnit getSourceUnit() {
+            return sourceUnit
+        }
+
+        @Override
+        public void visitBinaryExpression(BinaryExpression expression) {
+            // e.g., "def config = { ... }" where config is passed to plumber later.
+            boolean isPlumberConfig = expression.getOperation().getType() == Types.ASSIGN &&
+                expression.getLeftExpression() instanceof VariableExpression &&
+                expression.getRightExpression() instanceof ClosureExpression &&
+                plumberVariables.contains(((VariableExpression) expression.getLeftExpression()).getName())
+            if (isPlumberConfig) {
+                plumberDepth++
+            }
+
+            try {
+                super.visitBinaryExpression(expression)
+            } finally {
+                if (isPlumberConfig) {
+                    plumberDepth--
+                }
+            }
+        }
+
+        @Override
+        public void visitMethodCallExpression(MethodCallExpression call) {
+            boolean isPlumberConfig = isPlumberCall(call)
+            if (isPlumberConfig) {
+                plumberDepth++
+            }
+
+            try {
+                ClosureExpression pipelineClosure = pipelineClosure(call)
+                if (pipelineClosure != null && (!plumberCallsOnly || plumberDepth > 0)) {
+                    def invalidSteps = PipelineScriptValidator.invalidStepsIn(pipelineClosure)
+                    if (!invalidSteps.isEmpty()) {
+                        addError("Illegal Pipeline steps used in inline Pipeline - ${invalidSteps.join(', ')}", call)
+                    } else {
+                        call.setArguments(new ArgumentListExpression(new MethodCallExpression(
+                            new ClassExpression(ClassHelper.make(PipelineValidationCustomizer.class)), "validated",
+                            new ArgumentListExpression(pipelineClosure))))
+                    }
+                    // Only the closure is the user's code - the call wrapping it is ours.
+                    call.getObjectExpression().visit(this)
+                    pipelineClosure.visit(this)
+                } else {
+                    super.visitMethodCallExpression(call)
+                }
+            } finally {
+                if (isPlumberConfig) {
+                    plumberDepth--
+                }
+            }
+        }
+
+        @Override
+        public void visitVariableExpression(VariableExpression expression) {
+            checkNotThisClass(expression.getName(), expression)
+            super.visitVariableExpression(expression)
+        }
+
+        @Override
+        public void visitPropertyExpression(PropertyExpression expression) {
+            checkNotThisClass(expression.getPropertyAsString(), expression)
+            super.visitPropertyExpression(expression)
+        }
+
+        @Override
+        public void visitClassExpression(ClassExpression expression) {
+            checkNotThisClass(expression.getType().getNameWithoutPackage(), expression)
+            super.visitClassExpression(expression)
+        }
+
+        /**
+         * Scripts calling {@link #validated} themselves could mark anything as checked, so they may not refer to
+         * this class at all.
+         */
+        private void checkNotThisClass(String name, Expression expression) {
+            if (name == PipelineValidationCustomizer.class.getSimpleName()) {
+                addError("${name} can't be used in scripts", expression)
+            }
+        }
+
+        /**
+         * Gets the closure passed to a "pipeline { ... }" call, or null if this isn't one.
+         */
+        private ClosureExpression pipelineClosure(MethodCallExpression call) {
+            if (call.isImplicitThis() && call.getMethodAsString() == "pipeline"
+                && call.getArguments() instanceof TupleExpression) {
+                List<Expression> args = ((TupleExpression) call.getArguments()).getExpressions()
+                if (args.size() == 1 && args[0] instanceof ClosureExpression) {
+                    return (ClosureExpression) args[0]
+                }
+            }
+            return null
+        }
+    }
+}
@@ -0,0 +1,569 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.plumber
+
+import hudson.model.Job
+import hudson.model.Run
+import org.jenkinsci.plugins.plumber.model.Phase
+import org.jenkinsci.plugins.plumber.model.Root
+import org.jgrapht.DirectedGraph
+import org.jgrapht.graph.DefaultEdge
+
+import javax.annotation.Nonnull
+
+/**
+ * Simulates running a {@link Root}'s phases against a fixed set of executors, without touching any agents, to predict
+ * how long the run would take and how well it uses the executors. Useful for sizing agent pools and for finding
+ * badly structured plans before running them.
+ *
+ * Phases are assigned to executor pools by label - the phase's label, its docker label if it runs in a docker image,
+ * or "" for phases that can run anywhere. Labels are treated as plain pool names, not label expressions. Labels
+ * without a configured executor count have as many executors as they need. Phases whose action doesn't use a node,
+ * like input, don't take an executor at all. Times are in milliseconds.
+ *
+ * {@link Root#parallelism} limits every policy the same way the interpreter applies it - by phase as declared, so a
+ * matrix phase's combinations count once between them. The interpreter and LEVEL_SYNCHRONOUS apply it to each
+ * execution set, the other policies to the phases running at any one time.
+ */
+public class PlanSimulator {
+
+    /**
+     * How to order phases that are ready to run.
+     */
+    public enum Policy {
+        /**
+         * How the interpreter runs phases - each of {@link Root#executionSets()} in turn, waiting for the whole
+         * execution set to finish before starting the next.
+         */
+        LEVEL_SYNCHRONOUS,
+        /**
+         * Start each phase as soon as everything it depends on is done and an executor is free, first come first
+         * served.
+         */
+        GREEDY,
+        /**
+         * Like GREEDY, but when phases compete for executors, the one with the longest path to the end of the plan
+         * goes first.
+         */
+        CRITICAL_PATH_FIRST
+    }
+
+    private final Root root
+    private final Map<String,Long> durations = [:]
+    private long defaultDuration = 60000L
+    private final Map<String,Integer> executors = [:]
+
+    public PlanSimulator(@Nonnull Root root) {
+        this.root = root
+    }
+
+    /**
+     * Sets phase durations, by phase name. Matrix phases can be given for each combination or once for all of them.
+     *
+     * @param phaseDurations
+     * @return this simulator
+     */
+    public PlanSimulator durations(Map<String,Long> phaseDurations) {
+        durations.putAll(phaseDurations)
+        return this
+    }
+
+    /**
+     * Sets the duration for phases without one of their own. Defaults to one minute.
+     *
+     * @param duration
+     * @return this simulator
+     */
+    public PlanSimulator defaultDuration(long duration) {
+        defaultDuration = duration
+        return this
+    }
+
+    /**
+     * Sets the number of executors for a label. Use "" for executors of phases with no label.
+     *
+     * @param label
+     * @param count
+     * @return this simulator
+     */
+    public PlanSimulator executors(String label, int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Label '${label}' needs at least one executor, not ${count}")
+        }
+        executors.put(label, count)
+        return this
+    }
+
+    /**
+     * Simulates the plan with the given policy.
+     *
+     * @param policy
+     * @return The simulation results.
+     */
+    public SimulationResult simulate(@Nonnull Policy policy) {
+        List<SimPhase> simPhases = buildPhases()
+        Map<String,SimPhase> byName = simPhases.collectEntries { [(it.name): it] }
+
+        Schedule schedule = new Schedule(executors, simPhases.size())
+
+        if (policy == Policy.LEVEL_SYNCHRONOUS) {
+            long setStart = 0L
+            // Each execution set already has at most root.parallelism phases in it, so there's no limit to apply here.
+            root.executionSets().each { exSet ->
+                List<SimPhase> setPhases = exSet.phases.collect { Phase p -> byName[p.name] }
+                setStart = schedule.run(setPhases, false, setStart, 0, DECLARATION_ORDER)
+            }
+        } else {
+            Comparator<SimPhase> priority = policy == Policy.GREEDY ? schedule.readyOrder() : CRITICAL_PATH_ORDER
+            schedule.run(simPhases, true, 0L, root.parallelism ?: 0, priority)
+        }
+
+        return schedule.toResult(policy, simPhases)
+    }
+
+    /**
+     * Simulates the plan with every policy.
+     *
+     * @return The simulation results, by policy.
+     */
+    public Map<Policy,SimulationResult> compare() {
+        return Policy.values().collectEntries { [(it): simulate(it)] }
+    }
+
+    /**
+     * Gets average phase durations from the plumber phase results recorded on recent successful phases of a job.
+     * Phases a resumed build carried over from an earlier one didn't run in that build, so they're only counted once,
+     * in the build they actually ran in.
+     *
+     * @param job
+     * @param maxBuilds How many of the most recent builds to look at.
+     * @return Average duration in milliseconds, by phase name.
+     */
+    public static Map<String,Long> durationsFromHistory(@Nonnull Job<?,?> job, int maxBuilds) {
+        Map<String,List<Long>> samples = [:]
+
+        job.getBuilds().limit(maxBuilds).each { Run<?,?> run ->
+            Map<String,PlumberRunAction.PhaseRecord> records = run.getAction(PlumberRunAction.class)?.getPhases() ?: [:]
+            records.each { String name, PlumberRunAction.PhaseRecord record ->
+                if (record.result == "SUCCESS" && record.duration != null && !record.carriedOver) {
+                    samples.get(name, []) << record.duration
+                }
+            }
+        }
+
+        return samples.collectEntries { String name, List<Long> d ->
+            [(name): (long) (d.sum() / d.size())]
+        }
+    }
+
+    /**
+     * Expands the root's phases (see {@link Root#expandedPhases(Phase)}), wires up their dependencies and works out
+     * each one's label, duration and the longest path from its start to the end of the plan.
+     */
+    private List<SimPhase> buildPhases() {
+        List<SimPhase> simPhases = []
+        Map<String,List<SimPhase>> byBaseName = [:]
+
+        root.phases.each { Phase p ->
+            byBaseName[p.name] = root.expandedPhases(p).collect { Phase e ->
+                SimPhase s = new SimPhase(index: simPhases.size(), name: e.name, baseName: p.name,
+                    label: e.executorLabel(root) ?: "", usesNode: e.usesNode(), duration: durationOf(e.name, p.name))
+                simPhases << s
+                s
+            }
+        }
+
+        // Drop any dependencies on phases that don't exist, keeping the ordering they implied.
+        def graph = PlumberDependencyGraph.fromPhaseList(root.phases)
+        graph.removePhases(graph.getGraphCopy().vertexSet().findAll { !byBaseName.containsKey(it) } as List)
+        DirectedGraph<String, DefaultEdge> phaseGraph = graph.getGraphCopy()
+
+        phaseGraph.edgeSet().each { DefaultEdge edge ->
+            byBaseName[phaseGraph.getEdgeSource(edge)].each { SimPhase source ->
+                byBaseName[phaseGraph.getEdgeTarget(edge)].each { SimPhase target ->
+                    source.successors << target
+                    target.predecessors << source
+                }
+            }
+        }
+
+        // Longest path to the end, working back from the phases nothing depends on.
+        Map<SimPhase,Integer> remainingSuccessors = simPhases.collectEntries { [(it): it.successors.size()] }
+        List<SimPhase> toVisit = simPhases.findAll { it.successors.isEmpty() }
+        while (!toVisit.isEmpty()) {
+            SimPhase current = toVisit.remove(toVisit.size() - 1)
+            long longestAfter = 0L
+            for (SimPhase s : current.successors) {
+                longestAfter = Math.max(longestAfter, s.pathToEnd)
+            }
+            current.pathToEnd = current.duration + longestAfter
+
+            for (SimPhase pred : current.predecessors) {
+                int remaining = remainingSuccessors[pred] - 1
+                remainingSuccessors[pred] = remaining
+                if (remaining == 0) {
+                    toVisit << pred
+                }
+            }
+        }
+
+        return simPhases
+    }
+
+    private long durationOf(String expandedName, String name) {
+        if (durations.containsKey(expandedName)) {
+            return durations[expandedName]
+        } else if (durations.containsKey(name)) {
+            return durations[name]
+        } else {
+            return defaultDuration
+        }
+    }
+
+    private static final Comparator<SimPhase> DECLARATION_ORDER = { SimPhase a, SimPhase b ->
+        a.index <=> b.index
+    } as Comparator
+
+    private static final Comparator<SimPhase> CRITICAL_PATH_ORDER = { SimPhase a, SimPhase b ->
+        b.pathToEnd <=> a.pathToEnd ?: a.index <=> b.index
+    } as Comparator
+
+    private static class SimPhase {
+        int index
+        String name
+        String baseName
+        String label
+        boolean usesNode
+        long duration
+        long pathToEnd
+        List<SimPhase> predecessors = []
+        List<SimPhase> successors = []
+    }
+
+    /**
+     * The executor pools and the phases scheduled on them so far.
+     */
+    private static class Schedule {
+        final Map<String,Integer> executors
+        final long[] readyAt
+        final long[] startedAt
+        final long[] endedAt
+        final int[] executorUsed
+        final Map<String,PriorityQueue<Integer>> freeExecutors = [:]
+        final Map<String,Integer> executorsCreated = [:]
+        final Map<String,Integer> busy = [:]
+        final Map<String,Integer> peakBusy = [:]
+        final Map<String,Long> busyTime = [:]
+        final Map<String,List<long[]>> busyIntervals = [:]
+
+        Schedule(Map<String,Integer> executors, int phaseCount) {
+            this.executors = executors
+            readyAt = new long[phaseCount]
+            startedAt = new long[phaseCount]
+            endedAt = new long[phaseCount]
+            executorUsed = new int[phaseCount]
+        }
+
+        Comparator<SimPhase> readyOrder() {
+            return { SimPhase a, SimPhase b ->
+                readyAt[a.index] <=> readyAt[b.index] ?: a.index <=> b.index
+            } as Comparator
+        }
+
+        /**
+         * Runs the given phases from the given time until they're all done.
+         *
+         * @param phases
+         * @param followDependencies If false, all the phases are ready straight away.
+         * @param start
+         * @param parallelism How many phases, counting each matrix phase's combinations once, can run at once across
+         * all labels - 0 for no limit.
+         * @param priority Which ready phase to start first.
+         * @return When the last phase finishes.
+         */
+        long run(List<SimPhase> phases, boolean followDependencies, long start, int parallelism,
+                 Comparator<SimPhase> priority) {
+            Map<String,PriorityQueue<SimPhase>> ready = [:]
+            PriorityQueue<SimPhase> running = new PriorityQueue<SimPhase>(11, { SimPhase a, SimPhase b ->
+                endedAt[a.index] <=> endedAt[b.index] ?: a.index <=> b.index
+            } as Comparator)
+            Map<SimPhase,Integer> waitingOn = [:]
+            Map<String,Integer> runningPerBase = [:]
+            long now = start
+            long end = start
+
+            phases.each { SimPhase p ->
+                int deps = followDependencies ? p.predecessors.size() : 0
+                if (deps == 0) {
+                    makeReady(ready, p, now, priority)
+                } else {
+                    waitingOn[p] = deps
+                }
+            }
+
+            startReady(ready, running, runningPerBase, now, parallelism)
+
+            while (!running.isEmpty()) {
+                now = endedAt[running.peek().index]
+
+                // Finish everything that ends now before picking what runs next.
+                while (!running.isEmpty() && endedAt[running.peek().index] == now) {
+                    SimPhase done = running.poll()
+                    if (done.usesNode) {
+                        busy[done.label] = busy[done.label] - 1
+                        freeExecutors[done.label].add(executorUsed[done.index])
+                    }
+                    int stillRunning = runningPerBase[done.baseName] - 1
+                    if (stillRunning == 0) {
+                        runningPerBase.remove(done.baseName)
+                    } else {
+                        runningPerBase[done.baseName] = stillRunning
+                    }
+                    end = Math.max(end, now)
+
+                    if (followDependencies) {
+                        for (SimPhase s : done.successors) {
+                            int remaining = waitingOn[s] - 1
+                            waitingOn[s] = remaining
+                            if (remaining == 0) {
+                                makeReady(ready, s, now, priority)
+                            }
+                        }
+                    }
+                }
+
+                startReady(ready, running, runningPerBase, now, parallelism)
+            }
+
+            return end
+        }
+
+        private void makeReady(Map<String,PriorityQueue<SimPhase>> ready, SimPhase phase, long now,
+                               Comparator<SimPhase> priority) {
+            readyAt[phase.index] = now
+            String queueLabel = queueLabel(phase)
+            if (!ready.containsKey(queueLabel)) {
+                ready[queueLabel] = new PriorityQueue<SimPhase>(11, priority)
+            }
+            ready[queueLabel].add(phase)
+        }
+
+        /**
+         * Phases that don't use a node queue on their own, under the null label, which always has room.
+         */
+        private static String queueLabel(SimPhase phase) {
+            return phase.usesNode ? phase.label : null
+        }
+
+        /**
+         * Starts ready phases, best first, for as long as there are executors for them and the parallelism limit
+         * allows.
+         */
+        private void startReady(Map<String,PriorityQueue<SimPhase>> ready, PriorityQueue<SimPhase> running,
+                                Map<String,Integer> runningPerBase, long now, int parallelism) {
+            while (true) {
+                // At the limit, only more combinations of matrix phases that are already running can start.
+                boolean limited = parallelism > 0 && runningPerBase.size() >= parallelism
+                SimPhase next = null
+                ready.each { String label, PriorityQueue<SimPhase> queue ->
+                    if (queue.isEmpty() || !hasFreeExecutor(label)) {
+                        return
+                    }
+                    SimPhase candidate = limited ? queue.findAll { runningPerBase.containsKey(it.baseName) }
+                        .min(queue.comparator()) : queue.peek()
+                    if (candidate != null && (next == null || queue.comparator().compare(candidate, next) < 0)) {
+                        next = candidate
+                    }
+                }
+
+                if (next == null) {
+                    return
+                }
+
+                ready[queueLabel(next)].remove(next)
+                runningPerBase[next.baseName] = (runningPerBase[next.baseName] ?: 0) + 1
+                startedAt[next.index] = now
+                endedAt[next.index] = now + next.duration
+                running.add(next)
+
+                if (next.usesNode) {
+                    int executor = takeExecutor(next.label)
+                    executorUsed[next.index] = executor
+                    busyTime[next.label] = (busyTime[next.label] ?: 0L) + next.duration
+                    busyIntervals.get("${next.label}#${executor}".toString(), []) <<
+                        ([now, now + next.duration] as long[])
+                } else {
+                    executorUsed[next.index] = -1
+                }
+            }
+        }
+
+        private boolean hasFreeExecutor(String label) {
+            return label == null || !executors.containsKey(label) || (busy[label] ?: 0) < executors[label]
+        }
+
+        private int takeExecutor(String label) {
+            if (!freeExecutors.containsKey(label)) {
+                freeExecutors[label] = new PriorityQueue<Integer>()
+            }
+            PriorityQueue<Integer> free = freeExecutors[label]
+            if (free.isEmpty()) {
+                int created = executorsCreated[label] ?: 0
+                free.add(created)
+                executorsCreated[label] = created + 1
+            }
+
+            int nowBusy = (busy[label] ?: 0) + 1
+            busy[label] = nowBusy
+            peakBusy[label] = Math.max(peakBusy[label] ?: 0, nowBusy)
+
+            return free.poll()
+        }
+
+        SimulationResult toResult(Policy policy, List<SimPhase> simPhases) {
+            SimulationResult result = new SimulationResult(policy: policy)
+
+            simPhases.each { SimPhase p ->
+                result.phases[p.name] = new ScheduledPhase(name: p.name, label: p.label,
+                    executor: executorUsed[p.index], readyAt: readyAt[p.index], start: startedAt[p.index],
+                    end: endedAt[p.index])
+                result.makespan = Math.max(result.makespan, endedAt[p.index])
+            }
+
+            result.peakExecutors.putAll(peakBusy)
+
+            // Utilisation and idle gaps only mean something for labels with a fixed number of executors.
+            executors.each { String label, Integer count ->
+                if (!busyTime.containsKey(label)) {
+                    return
+                }
+                result.utilisation[label] = result.makespan == 0 ? 0.0d :
+                    (double) busyTime[label] / ((double) count * result.makespan)
+
+                for (int i = 0; i < count; i++) {
+                    long idleFrom = 0L
+                    for (long[] interval : busyIntervals.get("${label}#${i}".toString(), [])) {
+                        if (interval[0] > idleFrom) {
+                            result.idleGaps << new IdleGap(label: label, executor: i, start: idleFrom, end: interval[0])
+                        }
+                        idleFrom = interval[1]
+                    }
+                    if (idleFrom < result.makespan) {
+                        result.idleGaps << new IdleGap(label: label, executor: i, start: idleFrom, end: result.makespan)
+                    }
+                }
+            }
+
+            // The critical path follows the longest remaining path from the phase that starts it.
+            SimPhase current = simPhases.findAll { it.predecessors.isEmpty() }.max { it.pathToEnd }
+            if (current != null) {
+                result.criticalPathDuration = current.pathToEnd
+            }
+            while (current != null) {
+                result.criticalPath << current.name
+                current = current.successors.max { it.pathToEnd }
+            }
+
+            return result
+        }
+    }
+
+    /**
+     * The outcome of a simulation.
+     */
+    public static class SimulationResult {
+        Policy policy
+
+        /**
+         * When the last phase finishes.
+         */
+        long makespan = 0L
+
+        /**
+         * The longest chain of dependent phases, which no amount of executors can make the plan faster than.
+         */
+        List<String> criticalPath = []
+        long criticalPathDuration = 0L
+
+        /**
+         * When each phase was ready, started and finished, and where it ran.
+         */
+        Map<String,ScheduledPhase> phases = [:]
+
+        /**
+         * The fraction of available executor time spent running phases, for each label with a configured number of
+         * executors.
+         */
+        Map<String,Double> utilisation = [:]
+
+        /**
+         * The most executors in use at once, for every label - i.e., how many a label would need to never queue.
+         */
+        Map<String,Integer> peakExecutors = [:]
+
+        /**
+         * Periods where a configured executor sat idle before the plan was done.
+         */
+        List<IdleGap> idleGaps = []
+
+        /**
+         * @return A short human readable summary.
+         */
+        public String summary() {
+            return "${policy}: makespan ${makespan}ms, critical path ${criticalPathDuration}ms " +
+                "(${criticalPath.join(' -> ')}), utilisation ${utilisation}, peak executors ${peakExecutors}"
+        }
+    }
+
+    public static class ScheduledPhase {
+        String name
+        String label
+
+        /**
+         * Which of the label's executors the phase ran on, or -1 if it doesn't use a node.
+         */
+        int executor
+        long readyAt
+        long start
+        long end
+
+        /**
+         * @return How long the phase queued for an executor after everything it depends on was done.
+         */
+        public long getQueued() {
+            return start - readyAt
+        }
+    }
+
+    public static class IdleGap {
+        String label
+        int executor
+        long start
+        long end
+
+        public long getDuration() {
+            return end - start
+        }
+    }
+}
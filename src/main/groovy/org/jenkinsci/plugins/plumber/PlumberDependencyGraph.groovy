@@ -30,7 +30,6 @@ import org.jgrapht.alg.CycleDetector
 import org.jgrapht.graph.DefaultEdge
 import org.jgrapht.graph.SimpleDirectedGraph
 import org.jgrapht.graph.UnmodifiableDirectedGraph
-import org.jgrapht.traverse.TopologicalOrderIterator
 
 import javax.annotation.Nonnull
 
@@ -110,11 +109,11 @@ public class PlumberDependencyGraph {
      * @return The list of phases to run next
      */
     public List<String> getNextPhases(int parallelism = 0) {
-        // Return the phases to run - can be empty.
-        def iter = new TopologicalOrderIterator<String, DefaultEdge>(phaseGraph)
-        def candidatePhases = iter.findAll {
-            phaseGraph.incomingEdgesOf(it)?.isEmpty()
-        }
+        // Return the phases to run - can be empty. These are the phases a topological walk would start from, in the
+        // same order, without walking the rest of the graph.
+        def candidatePhases = phaseGraph.vertexSet().findAll {
+            phaseGraph.inDegreeOf(it) == 0
+        } as List
 
         // Just return the phases if parallelism is 0 or the number of candidate phases is less than or equal to the
         // parallelism count *or* if candidate phases is null or empty.
@@ -140,6 +139,53 @@ public class PlumberDependencyGraph {
         }
     }
 
+    /**
+     * Drops the given phases from the graph without running them. Each dropped phase's predecessors are connected
+     * directly to its successors, so the remaining phases still run in the same relative order.
+     *
+     * @param phases
+     */
+    public void removePhases(List<String> phases) {
+        phases.each { p ->
+            if (phaseGraph.containsVertex(p)) {
+                def sources = phaseGraph.incomingEdgesOf(p).collect { phaseGraph.getEdgeSource(it) }
+                def targets = phaseGraph.outgoingEdgesOf(p).collect { phaseGraph.getEdgeTarget(it) }
+
+                phaseGraph.removeVertex(p)
+
+                // Rewiring can't introduce a cycle, since every new edge follows an existing path.
+                sources.each { s ->
+                    targets.each { t ->
+                        phaseGraph.addEdge(s, t)
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets every phase that depends, directly or indirectly, on any of the given phases.
+     *
+     * @param phases
+     * @return The names of the downstream phases, not including the given phases unless they depend on each other.
+     */
+    public Set<String> descendantsOf(Collection<String> phases) {
+        Set<String> descendants = new LinkedHashSet<String>()
+        List<String> toVisit = phases.findAll { phaseGraph.containsVertex(it) }
+
+        while (!toVisit.isEmpty()) {
+            String current = toVisit.remove(0)
+            phaseGraph.outgoingEdgesOf(current).each { e ->
+                String target = phaseGraph.getEdgeTarget(e)
+                if (descendants.add(target)) {
+                    toVisit.add(target)
+                }
+            }
+        }
+
+        return descendants
+    }
+
     /**
      * Returns true if there are more phases yet to be run/removed.
      *
@@ -160,8 +206,30 @@ public class PlumberDependencyGraph {
      * @return a populated PlumberDependencyGraph
      */
     public static PlumberDependencyGraph fromPhaseList(List<Phase> phases) {
+        // Checking for cycles after every dependency is quadratic, so add everything and check once. Only if that
+        // finds a cycle do we go back to adding dependencies one at a time, dropping those that would close a cycle.
         def graph = new PlumberDependencyGraph()
 
+        phases.each { p ->
+            graph.addPhase(p.name)
+
+            p.before.each { before ->
+                graph.addPhase(before)
+                graph.phaseGraph.addEdge(p.name, before)
+            }
+
+            p.after.each { after ->
+                graph.addPhase(after)
+                graph.phaseGraph.addEdge(after, p.name)
+            }
+        }
+
+        if (!new CycleDetector<String, DefaultEdge>(graph.phaseGraph).detectCycles()) {
+            return graph
+        }
+
+        graph = new PlumberDependencyGraph()
+
         phases.each { p ->
             // Make sure we add each phase even if it's not connected to anything else.
             graph.addPhase(p.name)
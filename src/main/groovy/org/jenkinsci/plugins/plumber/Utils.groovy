@@ -24,8 +24,15 @@
 package org.jenkinsci.plugins.plumber
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings
+import hudson.model.Computer
+import hudson.model.Label
+import hudson.model.Node
+import hudson.scm.ChangeLogSet
+import hudson.slaves.Cloud
+import jenkins.model.Jenkins
 import org.jenkinsci.plugins.plumber.model.ModelForm
 import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.Whitelisted
+import org.jenkinsci.plugins.workflow.support.steps.build.RunWrapper
 
 import java.lang.reflect.ParameterizedType
 
@@ -196,6 +203,95 @@ public class Utils {
         throw new IllegalArgumentException(s)
     }
 
+    /**
+     * Ends the side branches - image pre-pulls and executor holds - running alongside an execution set's phases, by
+     * failing the branch the phases ran in so that a failFast parallel stops the others.
+     */
+    @Whitelisted
+    public static void endSideBranches() throws SideBranchesEnded {
+        throw new SideBranchesEnded()
+    }
+
+    @Whitelisted
+    public static boolean isSideBranchesEnd(Throwable t) {
+        return t instanceof SideBranchesEnded
+    }
+
+    public static class SideBranchesEnded extends RuntimeException {
+        public SideBranchesEnded() {
+            super("Execution set finished, ending image pre-pulls and executor holds")
+        }
+    }
+
+    /**
+     * Gets the paths affected by the changesets of the given build, so we don't need to whitelist the whole
+     * changeset API.
+     *
+     * @param build The currentBuild of the running Pipeline.
+     * @return The unique affected paths - empty if the build has no changesets.
+     */
+    @Whitelisted
+    public static List<String> changedPaths(RunWrapper build) {
+        def paths = []
+        def run = build?.getRawBuild()
+
+        if (run != null && run.metaClass.respondsTo(run, "getChangeSets")) {
+            run.getChangeSets().each { ChangeLogSet changeSet ->
+                changeSet.each { ChangeLogSet.Entry entry ->
+                    paths.addAll(entry.getAffectedPaths())
+                }
+            }
+        }
+
+        return paths.unique()
+    }
+
+    /**
+     * Works out how many executors on a label could be held for upcoming phases without taking any that the phases
+     * about to run need.
+     *
+     * @param labelString The label, or null for nodes that take any work.
+     * @param demand How many executors on the label the phases about to run need.
+     * @return The number of executors to spare - unlimited if a cloud can provision more for the label.
+     */
+    @Whitelisted
+    public static int executorsToSpare(String labelString, int demand) {
+        if (cloudCanProvision(labelString)) {
+            return Integer.MAX_VALUE
+        }
+
+        Jenkins jenkins = Jenkins.getInstance()
+        int idle = 0
+
+        if (labelString == null) {
+            jenkins.getComputers().each { Computer c ->
+                Node node = c.getNode()
+                if (node != null && node.getMode() == Node.Mode.NORMAL && c.isOnline() && c.isAcceptingTasks()) {
+                    idle += c.countIdle()
+                }
+            }
+        } else {
+            Label label = jenkins.getLabel(labelString)
+            if (label == null) {
+                return 0
+            }
+            idle = label.getIdleExecutors()
+        }
+
+        return Math.max(0, idle - demand)
+    }
+
+    /**
+     * @param labelString The label, or null for nodes that take any work.
+     * @return True if any cloud can provision a node for the label.
+     */
+    @Whitelisted
+    public static boolean cloudCanProvision(String labelString) {
+        Jenkins jenkins = Jenkins.getInstance()
+        Label label = labelString == null ? null : jenkins.getLabel(labelString)
+        return jenkins.clouds.any { Cloud c -> c.canProvision(label) }
+    }
+
     @Whitelisted
     public static boolean isCollectionOrArray(obj) {
         return obj instanceof Collection || obj.getClass().isArray()
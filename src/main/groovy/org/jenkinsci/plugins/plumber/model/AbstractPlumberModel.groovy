@@ -27,7 +27,9 @@ import groovy.transform.AutoClone
 import groovy.transform.AutoCloneStyle
 import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.Whitelisted
 
+import java.lang.reflect.Modifier
 import java.lang.reflect.ParameterizedType
+import java.util.concurrent.atomic.AtomicLong
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings
 
 /**
@@ -37,6 +39,9 @@ import edu.umd.cs.findbugs.annotations.SuppressFBWarnings
 @SuppressFBWarnings(value="SE_NO_SERIALVERSIONID")
 public abstract class AbstractPlumberModel<T extends AbstractPlumberModel<T>> implements Serializable, ModelForm {
 
+    // Bumped on every change to any model object, so anything resolved from the model can tell when it's stale.
+    private static final AtomicLong MODEL_VERSION = new AtomicLong()
+
     // TODO: Add some generalized validation hook here with implementations in the subclasses.
 
     @Whitelisted
@@ -52,6 +57,7 @@ public abstract class AbstractPlumberModel<T extends AbstractPlumberModel<T>> im
      */
     public T fieldVal(String key, Object val) {
         this."${key}" = val
+        modelChanged()
         (T) this
     }
 
@@ -64,6 +70,7 @@ public abstract class AbstractPlumberModel<T extends AbstractPlumberModel<T>> im
      */
     public T addValToList(String key, Object val) {
         this."${key}" << val
+        modelChanged()
         (T) this
     }
 
@@ -77,6 +84,7 @@ public abstract class AbstractPlumberModel<T extends AbstractPlumberModel<T>> im
      */
     public T closureVal(String key, Class clazz, Closure<?> closure) {
         this."${key}" = resolveClosure(clazz, closure)
+        modelChanged()
         (T) this
     }
 
@@ -91,6 +99,7 @@ public abstract class AbstractPlumberModel<T extends AbstractPlumberModel<T>> im
      */
     public T addClosureValToMap(String key, Class clazz, String mapKey, Closure<?> closure) {
         this."${key}".put(mapKey, resolveClosure(clazz, closure))
+        modelChanged()
         (T) this
     }
 
@@ -104,9 +113,24 @@ public abstract class AbstractPlumberModel<T extends AbstractPlumberModel<T>> im
      */
     public T addClosureValToList(String key, Class clazz, Closure<?> closure) {
         this."${key}" << resolveClosure(clazz, closure)
+        modelChanged()
         (T) this
     }
 
+    /**
+     * @return A number that changes whenever any model object is changed through its setters.
+     */
+    public static long modelVersion() {
+        return MODEL_VERSION.get()
+    }
+
+    /**
+     * Records that a model object has changed, for changes made other than through {@link #fieldVal} and friends.
+     */
+    protected static void modelChanged() {
+        MODEL_VERSION.incrementAndGet()
+    }
+
     /**
      * Takes a class and closure and resolves that closure into an instance of that class.
      *
@@ -151,8 +175,8 @@ public abstract class AbstractPlumberModel<T extends AbstractPlumberModel<T>> im
         // Arguments that *are* nested closures, including MappedClosures.
         tree.closures = [:]
 
-        // Get all the non-synthetic fields of the class we're in.
-        this.getClass().getDeclaredFields().findAll { !it.isSynthetic() }.each { f ->
+        // Get all the non-synthetic, non-transient fields of the class we're in.
+        this.getClass().getDeclaredFields().findAll { !it.isSynthetic() && !Modifier.isTransient(it.getModifiers()) }.each { f ->
             // Stash aside the field name.
             String fieldName = f.name
 
@@ -26,9 +26,14 @@ package org.jenkinsci.plugins.plumber.model
 import groovy.transform.EqualsAndHashCode
 import groovy.transform.ToString
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings
+import hudson.Util
 import io.jenkins.plugins.pipelineaction.PipelineAction
 import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.Whitelisted
 
+import java.nio.file.FileSystems
+import java.nio.file.PathMatcher
+import java.nio.file.Paths
+
 import static org.jenkinsci.plugins.plumber.Utils.getTabs
 import static org.jenkinsci.plugins.plumber.Utils.toArgForm
 
@@ -54,6 +59,9 @@ public class Phase extends AbstractPlumberModel {
     @Whitelisted
     String dockerImage
 
+    @Whitelisted
+    String dockerLabel
+
     @Whitelisted
     List<String> archiveDirs = []
 
@@ -91,6 +99,15 @@ public class Phase extends AbstractPlumberModel {
     @Whitelisted
     Boolean clean
 
+    @Whitelisted
+    List<String> changes = []
+
+    // Cache for getOverrides(...), along with the Root and model version it was resolved against. Not part of the
+    // model.
+    private transient PhaseOverrides resolvedOverrides
+    private transient Root resolvedOverridesRoot
+    private transient long resolvedOverridesVersion
+
     public Phase() {
 
     }
@@ -110,6 +127,11 @@ public class Phase extends AbstractPlumberModel {
         fieldVal("dockerImage", val)
     }
 
+    @Whitelisted
+    Phase dockerLabel(String val) {
+        fieldVal("dockerLabel", val)
+    }
+
     @Whitelisted
     Phase before(String val) {
         addValToList("before", val)
@@ -170,6 +192,21 @@ public class Phase extends AbstractPlumberModel {
         fieldVal("stashDirs", val)
     }
 
+    @Whitelisted
+    Phase change(String val) {
+        addValToList("changes", val)
+    }
+
+    @Whitelisted
+    Phase changes(List<String> val) {
+        fieldVal("changes", val)
+    }
+
+    @Whitelisted
+    Phase changes(String... val) {
+        fieldVal("changes", val)
+    }
+
     @Whitelisted
     Phase action(Closure<?> closure) {
         closureVal("action", Action.class, closure)
@@ -288,6 +325,7 @@ public class Phase extends AbstractPlumberModel {
      */
     public void addToEnv(String key, String value) {
         this.env."${key}" = value
+        modelChanged()
     }
 
     /**
@@ -297,6 +335,95 @@ public class Phase extends AbstractPlumberModel {
      */
     public void addToEnv(Map<String, String> inputMap) {
         this.env.putAll(inputMap)
+        modelChanged()
+    }
+
+    /**
+     * Determines whether this phase needs to run given the paths changed in this build. Phases without any changes
+     * filters always run, as does every phase when we don't know of any changed paths (i.e., a first build or a
+     * manually triggered one).
+     *
+     * Each filter is a glob relative to the repository root - "src/**" and the like. A filter without any glob
+     * characters matches that path and everything beneath it.
+     *
+     * @param changedPaths The paths affected by the build's changesets.
+     * @return true if the phase should run, false if it can be skipped.
+     */
+    @Whitelisted
+    public boolean matchesChanges(List<String> changedPaths) {
+        if (changes == null || changes.isEmpty() || changedPaths == null || changedPaths.isEmpty()) {
+            return true
+        }
+
+        return changes.any { String filter ->
+            if (filter.find(/[*?\[{]/) == null) {
+                def prefix = filter.endsWith("/") ? filter : filter + "/"
+                changedPaths.any { it == filter || it.startsWith(prefix) }
+            } else {
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:${filter}")
+                changedPaths.any { matcher.matches(Paths.get(it)) }
+            }
+        }
+    }
+
+    /**
+     * Whether this phase needs an executor at all - false only for actions that don't use a node, like input.
+     *
+     * @return true unless this phase's action doesn't use a node.
+     */
+    @Whitelisted
+    public boolean usesNode() {
+        def actionConfig = action?.actionConfig?.getMap()
+        if (pipeline == null && actionConfig != null && !actionConfig.isEmpty() && actionConfig.name != null) {
+            PipelineAction actionClass = PipelineAction.getPipelineAction(actionConfig.name)
+            return actionClass == null || actionClass.usesNode()
+        }
+        return true
+    }
+
+    /**
+     * Gets the label of the node this phase runs on - its own label, or the docker label if it runs in a docker image.
+     *
+     * @param root The Root this phase is in.
+     * @return The label, or null if the phase can run on any node.
+     */
+    @Whitelisted
+    public String executorLabel(Root root) {
+        if (label != null) {
+            return label
+        } else if (dockerImage != null) {
+            return getOverrides(root).dockerLabel
+        } else {
+            return null
+        }
+    }
+
+    /**
+     * Gets a digest of everything that determines what this phase does - its own configuration and what it picks up
+     * from the {@link Root} - so that we can tell whether it's changed since an earlier build.
+     *
+     * @param root The Root this phase is in.
+     * @return The digest, or null for phases with inline Pipeline code, since we can't tell if that has changed.
+     */
+    @Whitelisted
+    public String definitionDigest(Root root) {
+        if (pipeline != null) {
+            return null
+        }
+
+        def overrides = getOverrides(root)
+        def definition = [
+            phase: toTree(),
+            archiveDirs: overrides.archiveDirs,
+            stashDirs: overrides.stashDirs,
+            envList: overrides.envList,
+            treatUnstableAsSuccess: overrides.treatUnstableAsSuccess,
+            skipSCM: overrides.skipSCM,
+            scms: overrides.scms.collect { it.toTree() },
+            dockerLabel: overrides.dockerLabel
+        ]
+
+        return Util.getDigestOf(definition.toString())
     }
 
     /**
@@ -461,7 +588,7 @@ public class Phase extends AbstractPlumberModel {
             lines.addAll(envWrapper(overridesFlagsString, notifierFlagsBase, overrides, 1))
             lines << "}"
         } else if (dockerImage != null) {
-            lines << "node('docker') { // TODO: Figure out how we specify the Docker node label"
+            lines << "node('${overrides.dockerLabel}') {"
             lines << "\tdocker.image('${dockerImage}').inside() {"
             lines.addAll(envWrapper(overridesFlagsString, notifierFlagsBase, overrides, 2))
             lines << "\t}"
@@ -479,15 +606,22 @@ public class Phase extends AbstractPlumberModel {
     }
 
     /**
-     * Get the archiveDirs, stashDirs, env, scm and notifications for this phase, defaulting to the root versions if
-     * not specified here.
+     * Get the archiveDirs, stashDirs, env, scm, docker label and notifications for this phase, defaulting to the root
+     * versions if not specified here. These are resolved once per phase and root and then reused until the
+     * configuration changes, so the interpreter, code generation and notifiers all see the same immutable values.
      *
      * @param root The Root this phase is in.
      * @return An instance of PhaseOverrides for this root and phase objects.
      */
     @Whitelisted
     public PhaseOverrides getOverrides(Root root) {
-        return new PhaseOverrides(root, this)
+        long version = modelVersion()
+        if (resolvedOverrides == null || !root.is(resolvedOverridesRoot) || version != resolvedOverridesVersion) {
+            resolvedOverrides = new PhaseOverrides(root, this)
+            resolvedOverridesRoot = root
+            resolvedOverridesVersion = version
+        }
+        return resolvedOverrides
     }
 
     /**
@@ -495,57 +629,65 @@ public class Phase extends AbstractPlumberModel {
      */
     public static final class PhaseOverrides implements Serializable {
         @Whitelisted
-        String archiveDirs
+        final String archiveDirs
         @Whitelisted
-        String stashDirs
+        final String stashDirs
         @Whitelisted
-        Map<String,String> env = [:]
+        final Map<String,String> env
         @Whitelisted
-        Notifications notifications
+        final Notifications notifications
         @Whitelisted
-        Boolean treatUnstableAsSuccess
+        final Boolean treatUnstableAsSuccess
         @Whitelisted
-        Boolean skipSCM
+        final Boolean skipSCM
         @Whitelisted
-        List<SCM> scms = []
+        final List<SCM> scms
         @Whitelisted
-        List<String> envList
+        final List<String> envList
+        @Whitelisted
+        final String dockerLabel
 
         PhaseOverrides(Root root, Phase phase) {
             this.archiveDirs = phase.archiveDirs?.isEmpty() ? root.archiveDirs?.join(',') : phase.archiveDirs?.join(',')
 
             this.stashDirs = phase.stashDirs?.isEmpty() ? root.stashDirs?.join(',') : phase.stashDirs?.join(',')
 
-            this.env.putAll(root.env)
-            this.env.putAll(phase.env)
-
-            if (phase.notifications == null) {
-                if (root.notifications != null) {
-                    this.notifications = root.notifications
-                } else {
-                    this.notifications = new Notifications()
-                }
-            } else {
-                this.notifications = phase.notifications
+            Map<String,String> mergedEnv = [:]
+            mergedEnv.putAll(root.env)
+            mergedEnv.putAll(phase.env)
+            this.env = Collections.unmodifiableMap(mergedEnv)
 
-                // Get rid of need to specify configs in overrides.
-                if (phase.notifications.configs.isEmpty()) {
-                    this.notifications.configs.addAll(root.notifications.configs)
-                }
-            }
+            this.notifications = resolveNotifications(root, phase)
 
             this.treatUnstableAsSuccess = phase.treatUnstableAsSuccess == null ? root.treatUnstableAsSuccess : phase.treatUnstableAsSuccess
 
             this.skipSCM = phase.skipSCM == null ? root.skipSCM : phase.skipSCM
 
-            if (phase.scms.isEmpty()) {
-                this.scms.addAll(root.scms)
-            } else {
-                this.scms.addAll(phase.scms)
-            }
+            this.scms = Collections.unmodifiableList(new ArrayList<SCM>(phase.scms.isEmpty() ? root.scms : phase.scms))
+
+            this.dockerLabel = phase.dockerLabel ?: root.dockerLabel
 
             // Shortcut to avoid having to do collect in Pipeline script.
-            this.envList = this.env.collect { k, v -> "${k}=${v}" }
+            this.envList = Collections.unmodifiableList(mergedEnv.collect { k, v -> "${k}=${v}".toString() })
+        }
+
+        /**
+         * Always returns a copy, with an unmodifiable list of configs, so nothing using the overrides can change the
+         * root's or the phase's notifications.
+         */
+        private static Notifications resolveNotifications(Root root, Phase phase) {
+            Notifications resolved
+            if (phase.notifications == null) {
+                resolved = root.notifications != null ? (Notifications) root.notifications.clone() : new Notifications()
+            } else {
+                resolved = (Notifications) phase.notifications.clone()
+                if (resolved.configs.isEmpty() && root.notifications != null) {
+                    // Get rid of need to specify configs in overrides.
+                    resolved.configs = ((Notifications) root.notifications.clone()).configs
+                }
+            }
+            resolved.configs = Collections.unmodifiableList(new ArrayList<MappedClosure>(resolved.configs))
+            return resolved
         }
 
         /**
@@ -23,31 +23,50 @@
  */
 package org.jenkinsci.plugins.plumber.model
 
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings
-import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.Whitelisted
+import org.codehaus.groovy.ast.CodeVisitorSupport
+import org.codehaus.groovy.ast.expr.ClosureExpression
+import org.codehaus.groovy.ast.expr.MethodCallExpression
+import org.codehaus.groovy.ast.expr.VariableExpression
 
 /**
- * A special-case closure handler used exclusively to determine whether invalid steps are called within
- * the closure.
+ * Walks the AST of an inline Pipeline closure to determine whether invalid steps are called within it. Since this
+ * works on the source rather than by running the closure, steps in branches that wouldn't be taken are caught too.
  */
-@SuppressFBWarnings(value="SE_NO_SERIALVERSIONID")
-public class PipelineScriptValidator implements Serializable, MethodMissingWrapper {
-    @Whitelisted
-    static List<String> INVALID_STEPS = ["stage", "node", "parallel"]
+public class PipelineScriptValidator extends CodeVisitorSupport {
+    static final List<String> INVALID_STEPS = ["stage", "node", "parallel"]
 
-    @Whitelisted
     List<String> invalidStepsUsed = []
 
-    @Whitelisted
     public PipelineScriptValidator() {
 
     }
 
-    def methodMissing(String methodName, args) {
-        if (methodName in INVALID_STEPS) {
-            if (!invalidStepsUsed.contains(methodName)) {
-                invalidStepsUsed.add(methodName)
-            }
+    @Override
+    public void visitMethodCallExpression(MethodCallExpression call) {
+        def methodName = call.getMethodAsString()
+
+        if (isCallOnScript(call) && methodName in INVALID_STEPS && !invalidStepsUsed.contains(methodName)) {
+            invalidStepsUsed.add(methodName)
         }
+
+        super.visitMethodCallExpression(call)
+    }
+
+    private boolean isCallOnScript(MethodCallExpression call) {
+        return call.isImplicitThis() ||
+            (call.getObjectExpression() instanceof VariableExpression &&
+                ((VariableExpression) call.getObjectExpression()).isThisExpression())
+    }
+
+    /**
+     * Finds the invalid steps called anywhere in the given closure, in the order they first appear.
+     *
+     * @param closure The inline Pipeline closure's AST.
+     * @return The names of the invalid steps used, possibly empty.
+     */
+    public static List<String> invalidStepsIn(ClosureExpression closure) {
+        def validator = new PipelineScriptValidator()
+        closure.getCode()?.visit(validator)
+        return validator.invalidStepsUsed
     }
 }
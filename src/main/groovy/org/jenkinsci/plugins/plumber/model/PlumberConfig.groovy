@@ -25,6 +25,8 @@ package org.jenkinsci.plugins.plumber.model
 
 import groovy.json.JsonOutput
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings
+import org.codehaus.groovy.control.CompilerConfiguration
+import org.jenkinsci.plugins.plumber.PipelineValidationCustomizer
 import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.Whitelisted
 
 @SuppressFBWarnings(value="SE_NO_SERIALVERSIONID")
@@ -43,7 +45,11 @@ public class PlumberConfig {
 
     @Whitelisted
     public void fromString(String str) {
-        fromClosure((Closure)new GroovyShell().evaluate(str))
+        // The whole string is plumber configuration, so check every inline Pipeline block in it.
+        def compilerConfig = new CompilerConfiguration()
+        compilerConfig.addCompilationCustomizers(new PipelineValidationCustomizer(false))
+
+        fromClosure((Closure)new GroovyShell(compilerConfig).evaluate(str))
     }
 
     @Whitelisted
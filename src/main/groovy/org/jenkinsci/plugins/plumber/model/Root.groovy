@@ -64,6 +64,24 @@ public class Root extends AbstractPlumberModel {
     @Whitelisted
     Integer parallelism = 0
 
+    @Whitelisted
+    String dockerLabel = "docker"
+
+    @Whitelisted
+    Boolean prePullImages = false
+
+    @Whitelisted
+    Boolean reuseContainers = false
+
+    @Whitelisted
+    Boolean lookAheadNodes = false
+
+    @Whitelisted
+    Integer nodeHoldTimeout = 120
+
+    @Whitelisted
+    Boolean preserveStashes = false
+
     public Root() {
 
     }
@@ -164,7 +182,44 @@ public class Root extends AbstractPlumberModel {
     }
 
     @Whitelisted
-    public List<String> toPipelineScript(Boolean forExport = false) {
+    Root dockerLabel(String val) {
+        fieldVal("dockerLabel", val)
+    }
+
+    @Whitelisted
+    Root prePullImages(Boolean val) {
+        fieldVal("prePullImages", val)
+    }
+
+    @Whitelisted
+    Root reuseContainers(Boolean val) {
+        fieldVal("reuseContainers", val)
+    }
+
+    @Whitelisted
+    Root lookAheadNodes(Boolean val) {
+        fieldVal("lookAheadNodes", val)
+    }
+
+    @Whitelisted
+    Root nodeHoldTimeout(Integer val) {
+        fieldVal("nodeHoldTimeout", val)
+    }
+
+    @Whitelisted
+    Root preserveStashes(Boolean val) {
+        fieldVal("preserveStashes", val)
+    }
+
+    /**
+     * Generates Pipeline source for this configuration.
+     *
+     * @param forExport If true, generate a standalone script rather than one to be loaded and called.
+     * @param changedPaths The paths changed in this build, used to skip phases - null means skip nothing.
+     * @return Pipeline source code as a list of strings
+     */
+    @Whitelisted
+    public List<String> toPipelineScript(Boolean forExport = false, List<String> changedPaths = null) {
         def lines = []
 
         lines << "import io.jenkins.plugins.pipelineaction.PipelineActionType"
@@ -175,7 +230,7 @@ public class Root extends AbstractPlumberModel {
         if (!forExport) {
             lines << "def call() {"
         }
-        executionSets().eachWithIndex { exSet, idx ->
+        executionSets(changedPaths).eachWithIndex { exSet, idx ->
             lines << "stage '${exSet.stageName}'"
             lines.addAll(parallelizePhases(idx, exSet.phases))
         }
@@ -222,48 +277,245 @@ public class Root extends AbstractPlumberModel {
         }
     }
 
+    /**
+     * Returns true if any phase has a changes filter, so we only bother looking up changesets when we need them.
+     *
+     * @return true if at least one phase specifies changes.
+     */
+    @Whitelisted
+    public boolean hasChangeFilters() {
+        return phases.any { it.changes != null && !it.changes.isEmpty() }
+    }
+
+    /**
+     * Determines which phases don't need to run for the given changed paths. A phase is skipped if its changes filters
+     * don't match, unless a phase that is running unstashes from it - stash producers are kept for as long as
+     * something still consumes their stash. Conversely, a phase without changes filters of its own is skipped along
+     * with the phases that unstash from it if every one of those was skipped and nothing that runs comes after it.
+     *
+     * @param changedPaths The paths changed in this build.
+     * @return The names of the phases to skip, possibly empty.
+     */
+    @Whitelisted
+    public List<String> phasesToSkip(List<String> changedPaths) {
+        Set<String> running = phases.findAll { it.matchesChanges(changedPaths) }.collect { it.name } as Set
+
+        boolean added = true
+        while (added) {
+            added = false
+            phases.findAll { running.contains(it.name) }.each { Phase p ->
+                p.unstash.each { Unstash u ->
+                    if (phaseFromName(u.fromPhase) != null && !running.contains(u.fromPhase)) {
+                        running.add(u.fromPhase)
+                        added = true
+                    }
+                }
+            }
+        }
+
+        // Drop stash producers that are only there for phases that were skipped. Dropping one can leave its own
+        // producers unneeded in turn.
+        def graph = PlumberDependencyGraph.fromPhaseList(phases)
+        boolean removed = true
+        while (removed) {
+            removed = false
+            phases.findAll { running.contains(it.name) && !it.changes }.each { Phase p ->
+                List<Phase> consumers = phases.findAll { Phase c -> c.unstash.any { it.fromPhase == p.name } }
+                if (!consumers.isEmpty()
+                    && !consumers.any { running.contains(it.name) }
+                    && !graph.descendantsOf([p.name]).any { running.contains(it) }) {
+                    running.remove(p.name)
+                    removed = true
+                }
+            }
+        }
+
+        return phases.collect { it.name }.findAll { !running.contains(it) }
+    }
+
+    /**
+     * Determines which phases a build resuming from an earlier one can skip. A phase can be skipped if every phase
+     * actually run for it (see {@link #expandedPhases(Phase)}) succeeded in the earlier build with the same definition.
+     * Anything downstream of a phase that has to run again runs again too, as does any phase whose stash a rerun phase
+     * needs but which didn't preserve it.
+     *
+     * @param previousPhases Phase results from the earlier build, keyed by phase name, each with "result", "digest"
+     *     and "stashPreserved" entries.
+     * @return The names of the phases that don't need to run again.
+     */
+    @Whitelisted
+    public List<String> completedPhases(Map<String,Map<String,Object>> previousPhases) {
+        def graph = PlumberDependencyGraph.fromPhaseList(phases)
+
+        Set<String> rerun = phases.findAll { Phase p ->
+            !expandedPhases(p).every { Phase e ->
+                def record = previousPhases[e.name]
+                def digest = e.definitionDigest(this)
+                record != null && record.result == "SUCCESS" && digest != null && record.digest == digest
+            }
+        }.collect { it.name } as Set
+
+        boolean added = true
+        while (added) {
+            added = false
+            rerun.addAll(graph.descendantsOf(rerun))
+
+            phases.findAll { rerun.contains(it.name) }.each { Phase p ->
+                p.unstash.each { Unstash u ->
+                    if (phaseFromName(u.fromPhase) != null && !rerun.contains(u.fromPhase)
+                        && !previousPhases[u.fromPhase]?.stashPreserved) {
+                        rerun.add(u.fromPhase)
+                        added = true
+                    }
+                }
+            }
+        }
+
+        return phases.collect { it.name }.findAll { !rerun.contains(it) }
+    }
+
+    /**
+     * Gets the key for sharing a docker container with neighbouring execution sets - the docker label and image.
+     *
+     * @param exSet An execution set, as returned by {@link #executionSets}.
+     * @return The key, or null if container reuse is disabled or the execution set isn't a single docker phase.
+     */
+    @Whitelisted
+    public String reusableContainerKey(Map exSet) {
+        if (reuseContainers && exSet.phases.size() == 1) {
+            Phase phase = exSet.phases.get(0)
+            if (phase.label == null && phase.dockerImage != null && phase.usesNode()) {
+                return "${phase.getOverrides(this).dockerLabel}:${phase.dockerImage}".toString()
+            }
+        }
+        return null
+    }
+
+    /**
+     * Finds how far the run of execution sets sharing a docker container with the given one goes.
+     *
+     * @param executionSets As returned by {@link #executionSets}.
+     * @param first Index of the execution set the run starts with.
+     * @return Index of the last execution set in the run - the same as first if it doesn't share a container.
+     */
+    @Whitelisted
+    public int lastSharingContainer(List executionSets, int first) {
+        int last = first
+        String key = reusableContainerKey((Map) executionSets.get(first))
+        if (key != null) {
+            while (last + 1 < executionSets.size() && key == reusableContainerKey((Map) executionSets.get(last + 1))) {
+                last++
+            }
+        }
+        return last
+    }
+
+    /**
+     * Gets the docker images to pull ahead of the given execution set, and the labels to pull them on.
+     *
+     * @param executionSets As returned by {@link #executionSets}.
+     * @param nextIndex Index of the execution set whose images should be pulled.
+     * @return A list of maps with "label" and "image" keys, without duplicates - empty if pre-pulling is disabled.
+     */
+    @Whitelisted
+    public List<Map<String,String>> imagesToPrePull(List executionSets, int nextIndex) {
+        if (!prePullImages || nextIndex >= executionSets.size()) {
+            return []
+        }
+
+        List<Phase> nextPhases = executionSets.get(nextIndex).phases
+        return nextPhases.findAll { it.label == null && it.dockerImage != null && it.usesNode() }.collect { Phase p ->
+            [label: p.getOverrides(this).dockerLabel, image: p.dockerImage]
+        }.unique()
+    }
+
+    /**
+     * Counts the executors an execution set needs on a label.
+     *
+     * @param exSet An execution set, as returned by {@link #executionSets}.
+     * @param label The label, or null for phases that can run on any node.
+     * @return How many of the execution set's phases run on that label.
+     */
+    @Whitelisted
+    public int executorDemand(Map exSet, String label) {
+        return exSet.phases.count { Phase p -> p.usesNode() && p.executorLabel(this) == label }
+    }
+
+    /**
+     * Gets the names of the phases actually run for the given phase names, i.e., with matrix combinations expanded.
+     *
+     * @param phaseNames
+     * @return The expanded phase names.
+     */
+    @Whitelisted
+    public List<String> expandedPhaseNames(List<String> phaseNames) {
+        return phaseNames.collect { phaseFromName(it) }.findAll { it != null }.collectMany { Phase p ->
+            expandedPhases(p).collect { it.name }
+        }
+    }
+
+    /**
+     * Expands a phase into the phases actually run for it - a copy for each matrix combination, with the axes added
+     * to the environment, or just the phase itself if it has no matrix.
+     *
+     * @param p
+     * @return The phases to run.
+     */
+    public List<Phase> expandedPhases(Phase p) {
+        // If no matrix, just run it.
+        if (p.matrix == null || p.matrix.matrixCombinations().isEmpty()) {
+            return [p]
+        } else if (p.matrix.matrixCombinations().size() == 1) {
+            // If there's only one set of combinations, run it, with the axes added to the environment.
+            Phase newPhase = p.clone()
+            newPhase.addToEnv(p.matrix.matrixCombinations().first())
+
+            return [newPhase]
+        } else {
+            return p.matrix.matrixCombinations().collect { Map<String,String> thisCombo ->
+                Phase newPhase = p.clone()
+                newPhase.addToEnv(thisCombo)
+                newPhase.name = p.name + "+" + thisCombo.collect { k, v ->
+                    "${k}=${v}"
+                }.join(",")
+
+                newPhase
+            }
+        }
+    }
+
     /**
      * Returns a list of "execution sets" - groups of 1..n phases to be executed concurrently, with a stage name
      * constructed from the phase names as well.
      *
+     * @param changedPaths The paths changed in this build. If given, phases whose changes filters don't match are
+     *     dropped. Defaults to null, meaning all phases run.
+     * @param completedPhases Phases already completed by an earlier build being resumed, which are dropped as well.
+     *     Defaults to null.
      * @return A list of maps with "stageName" and "phases" keys.
      */
     @Whitelisted
-    public List executionSets() {
+    public List executionSets(List<String> changedPaths = null, List<String> completedPhases = null) {
         def graph = PlumberDependencyGraph.fromPhaseList(phases)
 
+        if (changedPaths != null) {
+            graph.removePhases(phasesToSkip(changedPaths))
+        }
+
+        if (completedPhases != null) {
+            graph.removePhases(completedPhases)
+        }
+
         def exSets = []
+        Map<String,Phase> phasesByName = phases.collectEntries { [(it.name): it] }
 
         while (graph.hasMorePhases()) {
             def exSetDetails = [:]
             def exSetPhaseNames = graph.getNextPhases(parallelism)
             exSetDetails.stageName = exSetPhaseNames.join("+")
 
-            exSetDetails.phases = []
-
             // Look for phases with matrix axes and transform them - add everything else automatically
-            exSetPhaseNames.collect { phaseFromName(it) }.each { Phase p ->
-                // If no matrix, just add it.
-                if (p.matrix == null || p.matrix.matrixCombinations().isEmpty()) {
-                    exSetDetails.phases << p
-                } else if (p.matrix.matrixCombinations().size() == 1) {
-                    // If there's only one set of combinations, add it, with the axes added to the environment.
-                    Phase newPhase = p.clone()
-                    newPhase.addToEnv(p.matrix.matrixCombinations().first())
-
-                    exSetDetails.phases << newPhase
-                } else {
-                    p.matrix.matrixCombinations().each { Map<String,String> thisCombo ->
-                        Phase newPhase = p.clone()
-                        newPhase.addToEnv(thisCombo)
-                        newPhase.name = p.name + "+" + thisCombo.collect { k, v ->
-                            "${k}=${v}"
-                        }.join(",")
-
-                        exSetDetails.phases << newPhase
-                    }
-                }
-            }
+            exSetDetails.phases = exSetPhaseNames.collectMany { expandedPhases(phasesByName[it]) }
 
             exSets << exSetDetails
 
@@ -0,0 +1,308 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.plumber;
+
+import hudson.AbortException;
+import hudson.model.Computer;
+import hudson.model.Failure;
+import hudson.model.Job;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+import org.apache.commons.io.FileUtils;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.Whitelisted;
+import org.jenkinsci.plugins.workflow.support.steps.build.RunWrapper;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Support for resuming a plumber build from an earlier one - recording phase outcomes, keeping stashes around after
+ * the build is done, and carrying completed phases and their stashes over to the resuming build.
+ *
+ * Stashes are normally deleted when a build completes, so to keep them we link or copy the stash archives out of the
+ * stash storage used by the stash step into our own directory. StashManager doesn't expose individual stashes, so this
+ * relies on its internal layout - "stashes/&lt;name&gt;.tar.gz" in the build directory - which is the only stash
+ * storage in the workflow-support versions we build against. If a stash isn't where we expect it, we log a warning and
+ * don't preserve it, so a resuming build reruns the phase rather than failing to unstash.
+ */
+public class PlumberResume {
+    private static final Logger LOGGER = Logger.getLogger(PlumberResume.class.getName());
+
+    private static final String STASHES_DIR = "stashes";
+    private static final String PRESERVED_STASHES_DIR = "plumber-stashes";
+    private static final String STASH_SUFFIX = ".tar.gz";
+
+    /**
+     * Records the outcome of a phase in the current build. The build isn't saved here - see {@link #saveRecords}.
+     *
+     * @param build The currentBuild of the running Pipeline.
+     * @param phaseName
+     * @param result "SUCCESS" or "FAILURE"
+     * @param digest The phase's definition digest, possibly null.
+     * @param preserveStash If true, keep the phase's stash around after the build completes.
+     * @param duration How long the phase ran for on its executor, in milliseconds.
+     * @throws IOException if the phase name isn't usable as a stash name, or its stash can't be linked.
+     */
+    @Whitelisted
+    public static void recordPhase(@Nonnull RunWrapper build, @Nonnull final String phaseName,
+                                   @Nonnull String result, @CheckForNull String digest, boolean preserveStash,
+                                   long duration) throws IOException {
+        Run<?, ?> run = build.getRawBuild();
+        final PlumberRunAction action = PlumberRunAction.forRun(run);
+
+        if (!preserveStash) {
+            action.putPhase(phaseName, new PlumberRunAction.PhaseRecord(result, digest, false, duration));
+            return;
+        }
+
+        checkName(phaseName);
+        File stash = stashFile(run, STASHES_DIR, phaseName);
+        File preserved = stashFile(run, PRESERVED_STASHES_DIR, phaseName);
+        final PlumberRunAction.PhaseRecord preservedRecord =
+                new PlumberRunAction.PhaseRecord(result, digest, true, duration);
+
+        if (!stash.isFile()) {
+            LOGGER.log(Level.WARNING, "Stash of phase {0} in {1} not found at {2}, so it can''t be preserved - is a "
+                    + "different stash storage in use?", new Object[] {phaseName, run, stash});
+            action.putPhase(phaseName, new PlumberRunAction.PhaseRecord(result, digest, false, duration));
+        } else if (link(stash, preserved)) {
+            action.putPhase(phaseName, preservedRecord);
+        } else {
+            // Only count the stash as preserved once the copy is in place - if it fails, a resuming build just
+            // reruns the phase.
+            action.putPhase(phaseName, new PlumberRunAction.PhaseRecord(result, digest, false, duration));
+            action.addPendingCopy(copyInBackground(stash, preserved, new Runnable() {
+                @Override
+                public void run() {
+                    action.putPhase(phaseName, preservedRecord);
+                }
+            }, false));
+        }
+    }
+
+    /**
+     * Saves the phase outcomes recorded since the build was last saved, if any. Saving after every phase would
+     * rewrite build.xml once per phase from the CPS thread, so the interpreter saves once per execution set and once
+     * more when it's done.
+     *
+     * @param build The currentBuild of the running Pipeline.
+     * @throws IOException if the build can't be saved.
+     */
+    @Whitelisted
+    public static void saveRecords(@Nonnull RunWrapper build) throws IOException {
+        Run<?, ?> run = build.getRawBuild();
+        PlumberRunAction action = run.getAction(PlumberRunAction.class);
+        if (action != null && action.takeUnsaved()) {
+            run.save();
+        }
+    }
+
+    /**
+     * Checks whether stashes are still being copied in the background, for filesystems that can't hard link them.
+     * Copies are left off the CPS thread, so the interpreter polls this from a waitUntil step when it needs them done -
+     * after carrying over stashes, and before the build completes and its stashes are cleared.
+     *
+     * @param build The currentBuild of the running Pipeline.
+     * @return True if any copies are still running.
+     * @throws IOException if a stash carried over from an earlier build couldn't be copied.
+     */
+    @Whitelisted
+    public static boolean copyingStashes(@Nonnull RunWrapper build) throws IOException {
+        PlumberRunAction action = build.getRawBuild().getAction(PlumberRunAction.class);
+        return action != null && action.hasPendingCopies();
+    }
+
+    /**
+     * Gets the phase outcomes recorded for an earlier build of the same job.
+     *
+     * @param build The currentBuild of the running Pipeline.
+     * @param buildNumber The number of the earlier build.
+     * @return A map of phase name to a map with "result", "digest" and "stashPreserved" entries.
+     * @throws AbortException if there's no such build, or it has no recorded phases.
+     */
+    @Whitelisted
+    @Nonnull
+    public static Map<String, Map<String, Object>> previousPhases(@Nonnull RunWrapper build, int buildNumber)
+            throws AbortException {
+        PlumberRunAction action = previousAction(build.getRawBuild(), buildNumber);
+
+        Map<String, Map<String, Object>> phases = new HashMap<>();
+        for (Map.Entry<String, PlumberRunAction.PhaseRecord> entry : action.getPhases().entrySet()) {
+            Map<String, Object> phase = new HashMap<>();
+            phase.put("result", entry.getValue().getResult());
+            phase.put("digest", entry.getValue().getDigest());
+            phase.put("stashPreserved", entry.getValue().isStashPreserved());
+            phases.put(entry.getKey(), phase);
+        }
+
+        return phases;
+    }
+
+    /**
+     * Carries completed phases over from an earlier build to the current one - their recorded outcomes, so that this
+     * build can be resumed from in turn, and their preserved stashes, so that phases that still need to run can
+     * unstash them.
+     *
+     * @param build The currentBuild of the running Pipeline.
+     * @param buildNumber The number of the earlier build.
+     * @param phaseNames The names of the phases being carried over.
+     * @throws IOException if a stash can't be restored or the build can't be saved. Stashes that have to be copied
+     * rather than linked are restored in the background - see {@link #copyingStashes}.
+     */
+    @Whitelisted
+    public static void carryOver(@Nonnull RunWrapper build, int buildNumber, @Nonnull List<String> phaseNames)
+            throws IOException {
+        Run<?, ?> run = build.getRawBuild();
+        Run<?, ?> previous = previousRun(run, buildNumber);
+        PlumberRunAction previousAction = previousAction(run, buildNumber);
+        PlumberRunAction action = PlumberRunAction.forRun(run);
+
+        for (String phaseName : phaseNames) {
+            PlumberRunAction.PhaseRecord record = previousAction.getPhase(phaseName);
+            if (record != null) {
+                if (record.isStashPreserved()) {
+                    checkName(phaseName);
+                    File preserved = stashFile(previous, PRESERVED_STASHES_DIR, phaseName);
+                    if (!preserved.isFile()) {
+                        throw new AbortException("Could not restore the stash of phase " + phaseName + " from build #"
+                                + buildNumber);
+                    }
+                    linkOrCopyInBackground(action, preserved, stashFile(run, STASHES_DIR, phaseName));
+                    linkOrCopyInBackground(action, preserved, stashFile(run, PRESERVED_STASHES_DIR, phaseName));
+                }
+                action.putPhase(phaseName, record.carriedOver());
+            }
+        }
+
+        run.save();
+    }
+
+    @Nonnull
+    private static Run<?, ?> previousRun(@Nonnull Run<?, ?> run, int buildNumber) throws AbortException {
+        Job<?, ?> job = run.getParent();
+        Run<?, ?> previous = job.getBuildByNumber(buildNumber);
+        if (previous == null || previous == run) {
+            throw new AbortException("No earlier build #" + buildNumber + " of " + job.getFullName() + " to resume from");
+        }
+        if (previous.isBuilding()) {
+            // Its phase records and stashes are still being written.
+            throw new AbortException("Can't resume from build #" + buildNumber + " of " + job.getFullName()
+                    + " while it's still running");
+        }
+        return previous;
+    }
+
+    @Nonnull
+    private static PlumberRunAction previousAction(@Nonnull Run<?, ?> run, int buildNumber) throws AbortException {
+        PlumberRunAction action = previousRun(run, buildNumber).getAction(PlumberRunAction.class);
+        if (action == null) {
+            throw new AbortException("Build #" + buildNumber + " has no plumber phase results to resume from");
+        }
+        return action;
+    }
+
+    /**
+     * Phase names end up in stash file paths, so reject anything the stash step wouldn't accept as a stash name
+     * before going near the filesystem.
+     */
+    private static void checkName(@Nonnull String phaseName) throws AbortException {
+        try {
+            Jenkins.checkGoodName(phaseName);
+        } catch (Failure e) {
+            throw new AbortException("Phase name '" + phaseName + "' can't be used for a stash: " + e.getMessage());
+        }
+    }
+
+    private static File stashFile(@Nonnull Run<?, ?> run, @Nonnull String dir, @Nonnull String name) {
+        return new File(new File(run.getRootDir(), dir), name + STASH_SUFFIX);
+    }
+
+    private static void linkOrCopyInBackground(@Nonnull PlumberRunAction action, @Nonnull File source,
+                                               @Nonnull File target) throws IOException {
+        if (!link(source, target)) {
+            action.addPendingCopy(copyInBackground(source, target, null, true));
+        }
+    }
+
+    /**
+     * Hard links the source to the target, so a stash doesn't take up space twice, replacing any existing target.
+     *
+     * @return true if the target is now linked, false if the filesystem can't link it and it needs copying instead.
+     */
+    private static boolean link(@Nonnull File source, @Nonnull File target) throws IOException {
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Could not replace " + target);
+        }
+        File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Copies the source to the target on a pooled thread rather than the CPS thread, since stashes can be large.
+     *
+     * @param onCopied Run once the copy is in place, if not null.
+     * @param failOnError If true, a failed copy fails the returned future, otherwise it's just logged.
+     */
+    @Nonnull
+    private static Future<?> copyInBackground(@Nonnull final File source, @Nonnull final File target,
+                                              @CheckForNull final Runnable onCopied, final boolean failOnError) {
+        return Computer.threadPoolForRemoting.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                try {
+                    FileUtils.copyFile(source, target);
+                } catch (IOException e) {
+                    if (failOnError) {
+                        throw e;
+                    }
+                    LOGGER.log(Level.WARNING, "Could not copy stash " + source + " to " + target, e);
+                    return null;
+                }
+                if (onCopied != null) {
+                    onCopied.run();
+                }
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.plumber;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Records how each phase of a plumber build went, so that later builds can resume from it.
+ */
+public class PlumberRunAction extends InvisibleAction {
+    private final Map<String, PhaseRecord> phases = new LinkedHashMap<>();
+
+    // Whether phases have been recorded since the build was last saved.
+    private transient boolean unsaved;
+
+    // Stash copies still running in the background.
+    private transient List<Future<?>> pendingCopies;
+
+    public synchronized void putPhase(@Nonnull String phaseName, @Nonnull PhaseRecord record) {
+        phases.put(phaseName, record);
+        unsaved = true;
+    }
+
+    @CheckForNull
+    public synchronized PhaseRecord getPhase(@Nonnull String phaseName) {
+        return phases.get(phaseName);
+    }
+
+    @Nonnull
+    public synchronized Map<String, PhaseRecord> getPhases() {
+        return new LinkedHashMap<>(phases);
+    }
+
+    /**
+     * @return True if phases have been recorded since the last call, i.e., the build needs saving.
+     */
+    synchronized boolean takeUnsaved() {
+        boolean wasUnsaved = unsaved;
+        unsaved = false;
+        return wasUnsaved;
+    }
+
+    synchronized void addPendingCopy(@Nonnull Future<?> copy) {
+        if (pendingCopies == null) {
+            pendingCopies = new ArrayList<>();
+        }
+        pendingCopies.add(copy);
+    }
+
+    /**
+     * @return True if any stash copies are still running.
+     * @throws IOException if a finished stash copy failed.
+     */
+    synchronized boolean hasPendingCopies() throws IOException {
+        if (pendingCopies == null) {
+            return false;
+        }
+
+        for (Iterator<Future<?>> it = pendingCopies.iterator(); it.hasNext(); ) {
+            Future<?> copy = it.next();
+            if (!copy.isDone()) {
+                return true;
+            }
+            it.remove();
+            try {
+                copy.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Could not copy a stash", e.getCause());
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted copying a stash", e);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Gets the action for the given build, adding it first if needed.
+     *
+     * @param run
+     * @return the build's PlumberRunAction
+     */
+    @Nonnull
+    public static PlumberRunAction forRun(@Nonnull Run<?, ?> run) {
+        synchronized (run) {
+            PlumberRunAction action = run.getAction(PlumberRunAction.class);
+            if (action == null) {
+                action = new PlumberRunAction();
+                run.addAction(action);
+            }
+            return action;
+        }
+    }
+
+    /**
+     * The outcome of a single phase.
+     */
+    public static final class PhaseRecord {
+        private final String result;
+        private final String digest;
+        private final boolean stashPreserved;
+        private final Long duration;
+        private final boolean carriedOver;
+
+        public PhaseRecord(@Nonnull String result, @CheckForNull String digest, boolean stashPreserved,
+                           @CheckForNull Long duration) {
+            this(result, digest, stashPreserved, duration, false);
+        }
+
+        private PhaseRecord(@Nonnull String result, @CheckForNull String digest, boolean stashPreserved,
+                            @CheckForNull Long duration, boolean carriedOver) {
+            this.result = result;
+            this.digest = digest;
+            this.stashPreserved = stashPreserved;
+            this.duration = duration;
+            this.carriedOver = carriedOver;
+        }
+
+        /**
+         * @return A copy of this record for a build that resumed from this one, without running the phase again.
+         */
+        @Nonnull
+        public PhaseRecord carriedOver() {
+            return new PhaseRecord(result, digest, stashPreserved, duration, true);
+        }
+
+        @Nonnull
+        public String getResult() {
+            return result;
+        }
+
+        /**
+         * @return The phase's definition digest, or null if the phase's definition can't be compared across builds.
+         */
+        @CheckForNull
+        public String getDigest() {
+            return digest;
+        }
+
+        /**
+         * @return True if the phase's stash was kept after the build, so a later build can restore it.
+         */
+        public boolean isStashPreserved() {
+            return stashPreserved;
+        }
+
+        /**
+         * @return How long the phase ran for on its executor, in milliseconds, or null if not known.
+         */
+        @CheckForNull
+        public Long getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return True if the phase didn't run in this build, but was carried over from the build it resumed from.
+         */
+        public boolean isCarriedOver() {
+            return carriedOver;
+        }
+    }
+}
@@ -73,7 +73,11 @@ public class PlumberStepDSL extends GlobalVariable {
                     "staticMethod org.codehaus.groovy.runtime.DefaultGroovyMethods size java.lang.Object[]",
                     "staticMethod hudson.model.Result fromString java.lang.String",
                     "method hudson.model.Result isBetterThan hudson.model.Result",
-                    "method java.util.Collection addAll java.util.Collection"
+                    "method java.util.Collection addAll java.util.Collection",
+                    "staticMethod java.lang.System currentTimeMillis",
+                    "method java.util.Map entrySet",
+                    "staticMethod java.lang.String format java.lang.String java.lang.Object[]",
+                    "staticMethod org.codehaus.groovy.runtime.DefaultGroovyMethods join java.util.Collection java.lang.String"
             ));
         }
     }
@@ -28,7 +28,7 @@ import org.jenkinsci.plugins.plumber.model.MappedClosure
 import org.jenkinsci.plugins.plumber.model.MethodMissingWrapper
 import org.jenkinsci.plugins.plumber.model.ModelForm
 import org.jenkinsci.plugins.plumber.model.PipelineClosureWrapper
-import org.jenkinsci.plugins.plumber.model.PipelineScriptValidator
+import org.jenkinsci.plugins.plumber.model.PipelineStepRecorder
 
 public class ClosureModelTranslator implements MethodMissingWrapper, Serializable {
     Map<String,Object> actualMap = [:]
@@ -79,22 +79,24 @@ public class ClosureModelTranslator implements MethodMissingWrapper, Serializabl
                 def actualType = Utils.actualFieldType(actualClass, methodName)
 
                 // If the argument is a Closure, but the field is *not* a PipelineClosureWrapper, we need to recurse.
-                // If the field is a PipelineClosureWrapper, we need to validate it and store it.
+                // If the field is a PipelineClosureWrapper, we store it - as is if PipelineValidationCustomizer
+                // already checked it for invalid steps when the script was compiled, otherwise after running it to
+                // see which steps it calls.
                 if (argValue != null && Utils.instanceOfWrapper(Closure.class, argValue)) {
                     Closure argClosure = argValue
 
                     if (Utils.assignableFromWrapper(PipelineClosureWrapper.class, actualType)) {
-                        def validator = new PipelineScriptValidator()
-                        argClosure.delegate = validator
-                        argClosure.resolveStrategy = Closure.DELEGATE_ONLY
-                        argClosure.call()
-
-                        if (!validator.invalidStepsUsed.isEmpty()) {
-                            Utils.throwIllegalArgs("Illegal Pipeline steps used in inline Pipeline - ${validator.invalidStepsUsed.join(', ')}")
-                        } else {
-                            resultValue = new PipelineClosureWrapper(argValue)
+                        if (!PipelineValidationCustomizer.isValidated(argClosure)) {
+                            def recorder = new PipelineStepRecorder()
+                            argClosure.delegate = recorder
+                            argClosure.resolveStrategy = Closure.DELEGATE_ONLY
+                            argClosure.call()
+
+                            if (!recorder.invalidStepsUsed.isEmpty()) {
+                                Utils.throwIllegalArgs("Illegal Pipeline steps used in inline Pipeline - ${recorder.invalidStepsUsed.join(', ')}")
+                            }
                         }
-
+                        resultValue = new PipelineClosureWrapper(argValue)
                     } else {
                         def ctm = new ClosureModelTranslator(actualType)
 
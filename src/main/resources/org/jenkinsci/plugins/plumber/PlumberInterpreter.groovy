@@ -41,19 +41,15 @@ import org.jenkinsci.plugins.workflow.cps.CpsScript
 class PlumberInterpreter implements Serializable {
     private CpsScript script;
 
+    // Milliseconds each phase spent waiting for its node, keyed by phase name.
+    private Map<String,Long> queueWaits = [:]
+
     public PlumberInterpreter(CpsScript script) {
         this.script = script;
     }
 
     def call(CpsClosure closure, Boolean doCodeGen = false) {
-        ClosureModelTranslator m = new ClosureModelTranslator(Root.class)
-
-        closure.delegate = m
-        closure.resolveStrategy = Closure.DELEGATE_ONLY
-        closure.call()
-
-        Root root = m.getModelForm()
-        executePipeline(root, doCodeGen)
+        executePipeline(translateClosure(closure), doCodeGen)
     }
 
     def call(String closureString, Boolean doCodeGen = false) {
@@ -66,10 +62,59 @@ class PlumberInterpreter implements Serializable {
         executePipeline(root, doCodeGen)
     }
 
-    private void executePipeline(Root root, Boolean doCodeGen) {
+    /**
+     * Runs the configuration, skipping any phases that already succeeded in the given earlier build of this job.
+     */
+    def resume(Integer buildNumber, CpsClosure closure) {
+        executePipeline(translateClosure(closure), false, buildNumber)
+    }
+
+    def resume(Integer buildNumber, String closureString) {
+        executePipeline(getRootConfig(closureString), false, buildNumber)
+    }
+
+    def resume(Integer buildNumber, Closure closure) {
+        executePipeline(getRootConfig(closure), false, buildNumber)
+    }
+
+    private Root translateClosure(CpsClosure closure) {
+        ClosureModelTranslator m = new ClosureModelTranslator(Root.class)
+
+        closure.delegate = m
+        closure.resolveStrategy = Closure.DELEGATE_ONLY
+        closure.call()
+
+        return m.getModelForm()
+    }
+
+    private void executePipeline(Root root, Boolean doCodeGen, Integer resumeFrom = null) {
+        List<String> changedPaths = null
+        List<String> completedPhases = null
+
+        if (root.hasChangeFilters()) {
+            changedPaths = Utils.changedPaths(script.getProperty("currentBuild"))
+            debugLog(root.debug, "Checking phase change filters against changed paths ${changedPaths}")
+
+            def skippedPhases = root.phasesToSkip(changedPaths)
+            if (!skippedPhases.isEmpty()) {
+                script.echo("Skipping phases with no matching changes: ${skippedPhases}")
+            }
+        }
+
+        if (resumeFrom != null) {
+            if (doCodeGen) {
+                script.error("Resuming from an earlier build isn't supported with generated Pipeline code")
+            }
+
+            def currentBuild = script.getProperty("currentBuild")
+            completedPhases = root.completedPhases(PlumberResume.previousPhases(currentBuild, resumeFrom))
+            PlumberResume.carryOver(currentBuild, resumeFrom, root.expandedPhaseNames(completedPhases))
+            waitForStashCopies(currentBuild)
+            script.echo("Resuming from build #${resumeFrom} - skipping phases already completed: ${completedPhases}")
+        }
 
         if (doCodeGen) {
-            String code = root.toPipelineScript().join("\n")
+            String code = root.toPipelineScript(false, changedPaths).join("\n")
 
             def flow
             script.node {
@@ -78,14 +123,234 @@ class PlumberInterpreter implements Serializable {
             }
             flow.call()
         } else {
-            def executionSets = root.executionSets()
+            def executionSets = root.executionSets(changedPaths, completedPhases)
+            def currentBuild = script.getProperty("currentBuild")
+
+            try {
+                runExecutionSets(root, executionSets)
+            } finally {
+                // Let any stash copies finish before the build completes and its stashes are cleared.
+                waitForStashCopies(currentBuild)
+                PlumberResume.saveRecords(currentBuild)
+            }
+
+            if (!queueWaits.isEmpty()) {
+                script.echo("Executor queue wait per phase: ${queueWaitSummary()}")
+            }
+        }
+    }
+
+    private void runExecutionSets(Root root, List executionSets) {
+        def currentBuild = script.getProperty("currentBuild")
 
-            for (int i = 0; i < executionSets.size(); i++) {
-                def exSet = executionSets.get(i)
+        for (int i = 0; i < executionSets.size(); i++) {
+            def exSet = executionSets.get(i)
+
+            // Consecutive single phase execution sets with the same docker image and label can share a container.
+            int lastInContainer = root.lastSharingContainer(executionSets, i)
+
+            if (lastInContainer > i) {
+                // Pre-pulls and executor holds would need executors of their own while the container's node is
+                // held, so neither is used alongside a shared container.
+                sharedContainer(root, executionSets, i, lastInContainer).call()
+                i = lastInContainer
+            } else {
+                def sideBranches = [:]
+                sideBranches.putAll(imagePrePulls(root, executionSets, i + 1))
+                sideBranches.putAll(nodeHolds(root, executionSets, i))
 
                 debugLog(root.debug, "Creating stage ${exSet.stageName}")
                 script.stage exSet.stageName
-                parallelizePhases(root, exSet.phases).call()
+                parallelizePhases(root, exSet.phases, sideBranches).call()
+            }
+
+            // Phase results are saved once per execution set rather than after every phase.
+            PlumberResume.saveRecords(currentBuild)
+        }
+    }
+
+    private void waitForStashCopies(def currentBuild) {
+        if (PlumberResume.copyingStashes(currentBuild)) {
+            script.echo("Waiting for stash copies to finish")
+            script.waitUntil {
+                !PlumberResume.copyingStashes(currentBuild)
+            }
+        }
+    }
+
+    /**
+     * When looking ahead for nodes, builds parallel branches that each ask for a node for a phase in the next
+     * execution set and hold it while the current execution set runs, so that a cloud can provision it in the
+     * meantime. Only labels a cloud can provision get holds - holding an idle executor that's already there wouldn't
+     * save the next phase anything, and would keep it from other builds. Holds end as soon as the current execution
+     * set's phases are done, or after the root's nodeHoldTimeout.
+     *
+     * @param root
+     * @param executionSets
+     * @param currentIndex Index of the execution set about to run - nodes are held for the one after it.
+     *
+     * @return A map of branch names to closures, empty if there's nothing to hold.
+     */
+    private Map<String,Closure> nodeHolds(Root root, List executionSets, int currentIndex) {
+        def holds = [:]
+
+        if (root.lookAheadNodes && currentIndex + 1 < executionSets.size()) {
+            List<Phase> nextPhases = executionSets.get(currentIndex + 1).phases
+
+            for (int i = 0; i < nextPhases.size(); i++) {
+                Phase phase = nextPhases.get(i)
+
+                if (phase.usesNode()) {
+                    String nodeLabel = phase.executorLabel(root)
+                    if (Utils.cloudCanProvision(nodeLabel)) {
+                        holds["hold executor for ${phase.name}".toString()] = nodeHold(root.debug, nodeLabel,
+                            phase.name, root.nodeHoldTimeout)
+                    } else {
+                        debugLog(root.debug,
+                            "No cloud to provision a node for upcoming phase ${phase.name}, not holding one")
+                    }
+                }
+            }
+        }
+
+        return holds
+    }
+
+    private Closure nodeHold(Boolean debug, String nodeLabel, String phaseName, Integer holdTimeout) {
+        def hold = {
+            debugLog(debug, "Holding executor for upcoming phase ${phaseName}")
+            script.sleep(time: holdTimeout, unit: 'SECONDS')
+            debugLog(debug, "Gave up executor held for phase ${phaseName} after ${holdTimeout} seconds")
+        }
+
+        return sideBranch {
+            if (nodeLabel != null) {
+                script.node(nodeLabel) {
+                    hold.call()
+                }
+            } else {
+                script.node {
+                    hold.call()
+                }
+            }
+        }
+    }
+
+    /**
+     * Wraps a side branch so that being stopped once the execution set's phases are done ends it quietly.
+     *
+     * @param body
+     *
+     * @return a Closure
+     */
+    private Closure sideBranch(Closure body) {
+        return {
+            try {
+                body.call()
+            } catch (Exception e) {
+                // Stopped because the phases are done, or the build was aborted, which the phases will report.
+            }
+        }
+    }
+
+    private void recordQueueWait(Boolean debug, String phaseName, long requestedAt) {
+        long waited = System.currentTimeMillis() - requestedAt
+        queueWaits[phaseName] = waited
+        debugLog(debug, "Phase ${phaseName} waited ${waited}ms for an executor")
+    }
+
+    @NonCPS
+    private String queueWaitSummary() {
+        def summary = []
+        for (Map.Entry<String,Long> entry : queueWaits.entrySet()) {
+            summary << "${entry.getKey()}=${String.format('%.1f', entry.getValue() / 1000.0)}s"
+        }
+        return summary.join(", ")
+    }
+
+    /**
+     * Runs the phases of the given range of execution sets one after another in a single docker container, rather
+     * than starting a new container on a new node for each of them.
+     *
+     * @param root
+     * @param executionSets
+     * @param first Index of the first execution set to run in the container
+     * @param last Index of the last execution set to run in the container
+     *
+     * @return a Closure
+     */
+    private Closure sharedContainer(Root root, List executionSets, int first, int last) {
+        Phase firstPhase = executionSets.get(first).phases.get(0)
+        Phase.PhaseOverrides overrides = firstPhase.getOverrides(root)
+
+        return {
+            debugLog(root.debug, "Running ${last - first + 1} phases in one container of docker image ${firstPhase.dockerImage}")
+            long requestedAt = System.currentTimeMillis()
+            script.node(overrides.dockerLabel) {
+                recordQueueWait(root.debug, firstPhase.name, requestedAt)
+                script.docker.image(firstPhase.dockerImage).inside() {
+                    for (int j = first; j <= last; j++) {
+                        def exSet = executionSets.get(j)
+
+                        debugLog(root.debug, "Creating stage ${exSet.stageName}")
+                        script.stage exSet.stageName
+                        parallelizePhases(root, exSet.phases, [:], true).call()
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds parallel branches pulling the docker images the given execution set will need on its docker nodes, so
+     * that they can run while the execution set before it is still going. Like executor holds, pulls only use
+     * executors the current execution set leaves free, so they never queue behind its phases. The pull runs on any
+     * node with the label, not necessarily the one the phase ends up on.
+     *
+     * @param root
+     * @param executionSets
+     * @param nextIndex Index of the execution set whose images should be pulled.
+     *
+     * @return A map of branch names to closures, empty if there's nothing to pull.
+     */
+    private Map<String,Closure> imagePrePulls(Root root, List executionSets, int nextIndex) {
+        def prePulls = [:]
+
+        List<Map<String,String>> images = root.imagesToPrePull(executionSets, nextIndex)
+        if (!images.isEmpty()) {
+            Map currentSet = executionSets.get(nextIndex - 1)
+            // Executors left to pull on per label.
+            def spare = [:]
+
+            for (int i = 0; i < images.size(); i++) {
+                Map<String,String> image = images.get(i)
+                String spareKey = image.label ?: ""
+                if (!spare.containsKey(spareKey)) {
+                    spare[spareKey] = Utils.executorsToSpare(image.label, root.executorDemand(currentSet, image.label))
+                }
+
+                if (spare[spareKey] > 0) {
+                    spare[spareKey] = spare[spareKey] - 1
+                    prePulls["pre-pull ${image.image} on ${image.label}".toString()] = imagePrePull(root.debug,
+                        image.label, image.image)
+                } else {
+                    debugLog(root.debug, "No executor to spare on ${image.label}, not pre-pulling ${image.image}")
+                }
+            }
+        }
+
+        return prePulls
+    }
+
+    private Closure imagePrePull(Boolean debug, String dockerLabel, String dockerImage) {
+        return sideBranch {
+            script.node(dockerLabel) {
+                try {
+                    debugLog(debug, "Pre-pulling docker image ${dockerImage}")
+                    script.docker.image(dockerImage).pull()
+                } catch (Exception e) {
+                    script.echo("Error pre-pulling docker image ${dockerImage}, but continuing: ${e}")
+                }
             }
         }
     }
@@ -105,12 +370,15 @@ class PlumberInterpreter implements Serializable {
         return conf.getConfig()
     }
 
-    def constructPhase(Root root, Phase phase) {
+    def constructPhase(Root root, Phase phase, Boolean inContainer = false) {
         Phase.PhaseOverrides overrides = phase.getOverrides(root)
+        // Tracks how the phase went, so that it can be recorded for resuming later builds from this one.
+        def phaseState = [succeeded: false, stashed: false, startedAt: 0L]
 
         return {
             debugLog(root.debug, "Determining whether to run in node/label/docker")
-            nodeLabelOrDocker(phase, root.debug) {
+            nodeLabelOrDocker(phase, overrides, root.debug, inContainer) {
+                phaseState.startedAt = System.currentTimeMillis()
 
                 debugLog(root.debug, "Determining environment overrides")
                 envWrapper(phase, overrides, root.debug) {
@@ -173,6 +441,7 @@ class PlumberInterpreter implements Serializable {
                             def actionMap = phase.action?.getMap()
                             debugLog(root.debug, "Running action ${actionMap.name ?: 'script'}")
                             script.getProperty("runPipelineAction").call(PipelineActionType.STANDARD, actionMap)
+                            phaseState.succeeded = true
                         }
                     } else if (phase.pipeline != null) {
                         debugLog(root.debug, "Executing Pipeline closure, wrapped in catchError")
@@ -181,6 +450,7 @@ class PlumberInterpreter implements Serializable {
                             closure.delegate = script
                             closure.resolveStrategy = Closure.DELEGATE_FIRST
                             closure.call()
+                            phaseState.succeeded = true
                         }
                     } else {
                         debugLog(root.debug, "ERROR: No action or Pipeline code specified")
@@ -201,6 +471,7 @@ class PlumberInterpreter implements Serializable {
                         debugLog(root.debug, "Stashing directories/files ${overrides.stashDirs}")
                         try {
                             script.stash(name: phase.name, includes: overrides.stashDirs)
+                            phaseState.stashed = true
                         } catch (Exception e) {
                             script.echo("Error stashing ${overrides.stashDirs}, but continuing: ${e}")
                         }
@@ -226,6 +497,11 @@ class PlumberInterpreter implements Serializable {
                     // Post-phase notifier
                     debugLog(root.debug, "Post-phase notifier")
                     generalNotifier(false, root.debug, overrides, phase)
+
+                    debugLog(root.debug, "Recording phase result")
+                    PlumberResume.recordPhase(script.getProperty("currentBuild"), phase.name,
+                        phaseState.succeeded ? "SUCCESS" : "FAILURE", phase.definitionDigest(root),
+                        root.preserveStashes && phaseState.stashed, System.currentTimeMillis() - phaseState.startedAt)
                 }.call()
             }.call()
         }
@@ -308,18 +584,27 @@ class PlumberInterpreter implements Serializable {
 
     /**
      * Wraps the given body in a node block, possibly with a docker.image.inside block within it as appropriate. If the
-     * phase's action is input, don't put anything in a node at all.
+     * phase's action is input, don't put anything in a node at all. If we're already running in a container shared
+     * with other phases, just run the body.
      *
      * @param phase
+     * @param overrides
      * @param debug
+     * @param inContainer
      * @param body
      *
      * @return a Closure. That does things. But not too soon. Hopefully.
      */
-    private Closure nodeLabelOrDocker(Phase phase, Boolean debug, Closure body) {
+    private Closure nodeLabelOrDocker(Phase phase, Phase.PhaseOverrides overrides, Boolean debug, Boolean inContainer,
+                                      Closure body) {
         def actualAction = getActualAction(phase.action)
 
-        if (phase.pipeline == null && (actualAction != null && !actualAction.usesNode())) {
+        if (inContainer) {
+            return {
+                debugLog(debug, "Running in shared container of docker image ${phase.dockerImage}")
+                body.call()
+            }
+        } else if (phase.pipeline == null && (actualAction != null && !actualAction.usesNode())) {
             // If we're prompting for input, don't wrap in a node.
             return {
                 debugLog(debug, "Running on flyweight executor for input")
@@ -328,7 +613,9 @@ class PlumberInterpreter implements Serializable {
         } else if (phase.label != null) {
             return {
                 debugLog(debug, "Running in label ${phase.label}")
+                long requestedAt = System.currentTimeMillis()
                 script.node(phase.label) {
+                    recordQueueWait(debug, phase.name, requestedAt)
                     if (phase.clean) {
                         debugLog(debug, "Cleaning workspace before phase execution")
                         script.deleteDir()
@@ -338,8 +625,10 @@ class PlumberInterpreter implements Serializable {
             }
         } else if (phase.dockerImage != null) {
             return {
-                debugLog(debug, "Running in docker image ${phase.dockerImage}")
-                script.node("docker") { // TODO: Figure out how we specify the Docker node label
+                debugLog(debug, "Running in docker image ${phase.dockerImage} on label ${overrides.dockerLabel}")
+                long requestedAt = System.currentTimeMillis()
+                script.node(overrides.dockerLabel) {
+                    recordQueueWait(debug, phase.name, requestedAt)
                     script.docker.image(phase.dockerImage).inside() {
                         body.call()
                     }
@@ -348,7 +637,9 @@ class PlumberInterpreter implements Serializable {
         } else {
             return {
                 debugLog(debug, "Running on arbitrary node")
+                long requestedAt = System.currentTimeMillis()
                 script.node {
+                    recordQueueWait(debug, phase.name, requestedAt)
                     if (phase.clean) {
                         debugLog(debug, "Cleaning workspace before phase execution")
                         script.deleteDir()
@@ -365,26 +656,72 @@ class PlumberInterpreter implements Serializable {
         }
     }
 
-    private def parallelizePhases(Root root, List<Phase> phases) {
+    private def parallelizePhases(Root root, List<Phase> phases, Map<String,Closure> sideBranches = [:],
+                                  Boolean inContainer = false) {
         return {
             debugLog(root.debug, "Checking for how to run phases...")
-            if (phases.size() > 1) {
+            if (!phases.isEmpty() && !sideBranches.isEmpty()) {
+                debugLog(root.debug, "Running phases alongside image pre-pulls and executor holds")
+                runWithSideBranches(root, phases, sideBranches, inContainer)
+            } else if (phases.size() > 1) {
                 debugLog(root.debug, "Multiple phases in an execution set, run in parallel")
-                def parallelPhases = [:]
-                for (int i = 0; i < phases.size(); i++) {
-                    def phase = phases.get(i)
-                    parallelPhases[phase.name] = constructPhase(root, phase)
-                }
-                script.parallel(parallelPhases)
+                script.parallel(phaseBranches(root, phases, inContainer))
             } else if (!phases.isEmpty()) {
                 debugLog(root.debug, "Single phase in an execution set, run alone")
-                constructPhase(root, phases[0]).call()
+                constructPhase(root, phases[0], inContainer).call()
             } else {
                 debugLog(root.debug, "No phases in execution set - skipping?")
             }
         }
     }
 
+    private Map<String,Closure> phaseBranches(Root root, List<Phase> phases, Boolean inContainer) {
+        def branches = [:]
+        for (int i = 0; i < phases.size(); i++) {
+            def phase = phases.get(i)
+            branches[phase.name] = constructPhase(root, phase, inContainer)
+        }
+        return branches
+    }
+
+    /**
+     * Runs the phases in one branch and the side branches next to it. Once the phases are done, their branch fails
+     * on purpose so that failFast stops the side branches straight away, rather than the execution set waiting for
+     * holds and pulls that are no use any more.
+     */
+    private void runWithSideBranches(Root root, List<Phase> phases, Map<String,Closure> sideBranches,
+                                     Boolean inContainer) {
+        def phaseFailure = [error: null]
+        def branches = [:]
+        // Phases go first, so they ask for their executors ahead of any pre-pulls and holds.
+        branches["phases"] = {
+            try {
+                if (phases.size() > 1) {
+                    script.parallel(phaseBranches(root, phases, inContainer))
+                } else {
+                    constructPhase(root, phases[0], inContainer).call()
+                }
+            } catch (Exception e) {
+                phaseFailure.error = e
+            }
+            Utils.endSideBranches()
+        }
+        branches.putAll(sideBranches)
+        branches.failFast = true
+
+        try {
+            script.parallel(branches)
+        } catch (Exception e) {
+            if (!Utils.isSideBranchesEnd(e)) {
+                throw e
+            }
+        }
+
+        if (phaseFailure.error != null) {
+            throw phaseFailure.error
+        }
+    }
+
     private PipelineAction getActualAction(Action action, PipelineActionType type = PipelineActionType.STANDARD) {
         def actionConfig = action?.actionConfig?.getMap()
         PipelineAction actionClass
@@ -0,0 +1,240 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.plumber.model
+
+import org.jenkinsci.plugins.plumber.PlanSimulator
+import org.junit.Test
+import static org.junit.Assert.*
+
+
+class PlanSimulatorTest {
+    @Test
+    public void testLevelSynchronousWaitsForSlowestPhase() {
+        def plumberConfig = new PlumberConfig()
+        plumberConfig.fromClosure {
+            phase {
+                name "build"
+                action {
+                    script "echo build"
+                }
+            }
+            phase {
+                name "slow"
+                action {
+                    script "echo slow"
+                }
+                after "build"
+            }
+            phase {
+                name "fast"
+                action {
+                    script "echo fast"
+                }
+                after "build"
+            }
+            phase {
+                name "afterFast"
+                action {
+                    script "echo afterFast"
+                }
+                after "fast"
+            }
+        }
+
+        def simulator = new PlanSimulator(plumberConfig.getConfig())
+            .durations([build: 10L, slow: 30L, fast: 10L, afterFast: 10L])
+
+        def levels = simulator.simulate(PlanSimulator.Policy.LEVEL_SYNCHRONOUS)
+        assertEquals(50L, levels.makespan)
+        assertEquals(40L, levels.phases["afterFast"].start)
+
+        def greedy = simulator.simulate(PlanSimulator.Policy.GREEDY)
+        assertEquals(40L, greedy.makespan)
+        assertEquals(20L, greedy.phases["afterFast"].start)
+
+        assertEquals(["build", "slow"], greedy.criticalPath)
+        assertEquals(40L, greedy.criticalPathDuration)
+    }
+
+    @Test
+    public void testCriticalPathFirstWithLimitedExecutors() {
+        def plumberConfig = new PlumberConfig()
+        plumberConfig.fromClosure {
+            phase {
+                name "a"
+                action {
+                    script "echo a"
+                }
+            }
+            phase {
+                name "b"
+                action {
+                    script "echo b"
+                }
+            }
+            phase {
+                name "c"
+                action {
+                    script "echo c"
+                }
+            }
+            phase {
+                name "d"
+                action {
+                    script "echo d"
+                }
+                after "c"
+            }
+        }
+
+        def simulator = new PlanSimulator(plumberConfig.getConfig())
+            .defaultDuration(10L)
+            .durations([d: 30L])
+            .executors("", 2)
+
+        def results = simulator.compare()
+
+        assertEquals(50L, results[PlanSimulator.Policy.LEVEL_SYNCHRONOUS].makespan)
+        assertEquals(50L, results[PlanSimulator.Policy.GREEDY].makespan)
+
+        def cpf = results[PlanSimulator.Policy.CRITICAL_PATH_FIRST]
+        assertEquals(40L, cpf.makespan)
+        assertEquals(10L, cpf.phases["b"].queued)
+        assertEquals(0.75d, cpf.utilisation[""], 0.001d)
+        assertEquals(2, cpf.peakExecutors[""])
+
+        assertEquals(1, cpf.idleGaps.size())
+        assertEquals(20L, cpf.idleGaps[0].start)
+        assertEquals(40L, cpf.idleGaps[0].end)
+    }
+
+    @Test
+    public void testMatrixPhasesAndLabels() {
+        def plumberConfig = new PlumberConfig()
+        plumberConfig.fromClosure {
+            phase {
+                name "test"
+                label "linux"
+                matrix {
+                    axes {
+                        "JDK" "7", "8", "9"
+                    }
+                }
+                action {
+                    script "echo test"
+                }
+            }
+            phase {
+                name "image"
+                dockerImage "maven"
+                action {
+                    script "echo image"
+                }
+            }
+        }
+
+        def result = new PlanSimulator(plumberConfig.getConfig())
+            .durations(["test": 20L, "test+JDK=9": 40L, "image": 5L])
+            .simulate(PlanSimulator.Policy.GREEDY)
+
+        assertEquals(40L, result.makespan)
+        assertEquals(20L, result.phases["test+JDK=7"].end)
+        assertEquals(3, result.peakExecutors["linux"])
+        assertEquals("docker", result.phases["image"].label)
+
+        // No configured executors, so nothing to measure utilisation against.
+        assertTrue(result.utilisation.isEmpty())
+        assertTrue(result.idleGaps.isEmpty())
+    }
+
+    @Test
+    public void testParallelismCountsMatrixPhasesOnce() {
+        def plumberConfig = new PlumberConfig()
+        plumberConfig.fromClosure {
+            parallelism 2
+            phase {
+                name "matrix"
+                matrix {
+                    axes {
+                        "JDK" "7", "8", "9"
+                    }
+                }
+                action {
+                    script "echo matrix"
+                }
+            }
+            phase {
+                name "a"
+                action {
+                    script "echo a"
+                }
+            }
+            phase {
+                name "b"
+                action {
+                    script "echo b"
+                }
+            }
+        }
+
+        def results = new PlanSimulator(plumberConfig.getConfig()).defaultDuration(10L).compare()
+
+        results.values().each { result ->
+            assertEquals(20L, result.makespan)
+        }
+
+        def greedy = results[PlanSimulator.Policy.GREEDY]
+        assertEquals(0L, greedy.phases["matrix+JDK=9"].start)
+        assertEquals(0L, greedy.phases["a"].start)
+        assertEquals(10L, greedy.phases["b"].start)
+    }
+
+    @Test
+    public void testLargePlan() {
+        def root = new Root()
+        for (int i = 0; i < 1000; i++) {
+            def phase = new Phase()
+            phase.name = "phase${i}".toString()
+            if (i >= 10) {
+                phase.after = ["phase${i.intdiv(10) - 1}".toString(), "phase${i - 10}".toString()].unique()
+            }
+            root.phases << phase
+        }
+
+        long started = System.currentTimeMillis()
+        def results = new PlanSimulator(root).executors("", 8).compare()
+        long elapsed = System.currentTimeMillis() - started
+        println "Simulated ${root.phases.size()} phases with every policy in ${elapsed}ms"
+        // Generous enough for a slow CI box, but still catches the scheduling loop blowing up.
+        assertTrue("Simulation took ${elapsed}ms".toString(), elapsed < 30000L)
+
+        results.values().each { result ->
+            assertEquals(1000, result.phases.size())
+            assertTrue(result.makespan >= result.criticalPathDuration)
+            // Never better than keeping all 8 executors busy the whole time.
+            assertTrue(result.makespan >= 1000L * 60000L / 8)
+            assertTrue(result.peakExecutors[""] <= 8)
+        }
+    }
+}
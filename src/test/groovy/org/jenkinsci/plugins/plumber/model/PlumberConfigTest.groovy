@@ -23,6 +23,7 @@
  */
 package org.jenkinsci.plugins.plumber.model
 
+import org.codehaus.groovy.control.MultipleCompilationErrorsException
 import org.junit.Test
 import static org.junit.Assert.*;
 
@@ -196,4 +197,285 @@ class PlumberConfigTest {
         assertTrue(p.pipeline.closure instanceof Closure)
     }
 
+    @Test
+    public void testChangesFilter() {
+        def config = new PlumberConfig()
+        def c = {
+            phase {
+                name "foo"
+                changes "frontend/**", "*.md"
+                action {
+                    script "echo hello"
+                }
+            }
+            phase {
+                name "bar"
+                change "backend"
+                action {
+                    script "echo hello"
+                }
+            }
+        }
+
+        config.fromClosure(c)
+        def root = config.getConfig()
+
+        Phase foo = root.phaseFromName("foo")
+        Phase bar = root.phaseFromName("bar")
+
+        assertEquals(["frontend/**", "*.md"], foo.changes)
+        assertTrue(foo.matchesChanges(["frontend/src/app.js"]))
+        assertTrue(foo.matchesChanges(["README.md"]))
+        assertFalse(foo.matchesChanges(["backend/pom.xml"]))
+
+        assertTrue(bar.matchesChanges(["backend/pom.xml"]))
+        assertFalse(bar.matchesChanges(["backend-tools/pom.xml"]))
+
+        assertTrue(foo.matchesChanges([]))
+        assertTrue(foo.matchesChanges(null))
+    }
+
+    @Test
+    public void testDockerLabel() {
+        def config = new PlumberConfig()
+        def c = {
+            dockerLabel "docker-hosts"
+            phase {
+                name "foo"
+                dockerImage "maven:3"
+                action {
+                    script "echo hello"
+                }
+            }
+            phase {
+                name "bar"
+                dockerImage "node:6"
+                dockerLabel "big-docker-hosts"
+                action {
+                    script "echo hello"
+                }
+            }
+        }
+
+        config.fromClosure(c)
+        def root = config.getConfig()
+
+        assertEquals("docker-hosts", root.phaseFromName("foo").getOverrides(root).dockerLabel)
+        assertEquals("big-docker-hosts", root.phaseFromName("bar").getOverrides(root).dockerLabel)
+        assertEquals("docker", new Root().dockerLabel)
+
+        def code = root.toPipelineScript().join("\n")
+        assertTrue(code.contains("node('docker-hosts') {"))
+        assertTrue(code.contains("node('big-docker-hosts') {"))
+    }
+
+    @Test
+    public void testContainerReuseAndPrePullPlan() {
+        def config = new PlumberConfig()
+        def c = {
+            reuseContainers true
+            prePullImages true
+            phase {
+                name "compile"
+                dockerImage "maven:3"
+                action {
+                    script "mvn compile"
+                }
+            }
+            phase {
+                name "test"
+                dockerImage "maven:3"
+                after "compile"
+                action {
+                    script "mvn test"
+                }
+            }
+            phase {
+                name "frontend"
+                dockerImage "node:6"
+                after "test"
+                action {
+                    script "npm test"
+                }
+            }
+            phase {
+                name "lint"
+                dockerImage "node:6"
+                after "test"
+                action {
+                    script "npm run lint"
+                }
+            }
+            phase {
+                name "package"
+                label "linux"
+                after "frontend", "lint"
+                action {
+                    script "make package"
+                }
+            }
+        }
+
+        config.fromClosure(c)
+        def root = config.getConfig()
+        def exSets = root.executionSets()
+
+        assertEquals(4, exSets.size())
+        assertEquals("docker:maven:3", root.reusableContainerKey(exSets[0]))
+        // compile and test share a container, the parallel node phases and the labelled phase don't.
+        assertEquals(1, root.lastSharingContainer(exSets, 0))
+        assertNull(root.reusableContainerKey(exSets[2]))
+        assertEquals(2, root.lastSharingContainer(exSets, 2))
+        assertEquals(3, root.lastSharingContainer(exSets, 3))
+
+        assertEquals([[label: "docker", image: "node:6"]], root.imagesToPrePull(exSets, 2))
+        assertEquals([], root.imagesToPrePull(exSets, 3))
+        assertEquals([], root.imagesToPrePull(exSets, 4))
+
+        assertEquals(2, root.executorDemand(exSets[2], "docker"))
+        assertEquals(0, root.executorDemand(exSets[2], "linux"))
+        assertEquals(1, root.executorDemand(exSets[3], "linux"))
+
+        root.reuseContainers = false
+        root.prePullImages = false
+        assertEquals(0, root.lastSharingContainer(exSets, 0))
+        assertEquals([], root.imagesToPrePull(exSets, 2))
+    }
+
+    @Test
+    public void testInlinePipelineInvalidStepsFromString() {
+        def config = new PlumberConfig()
+
+        try {
+            config.fromString("""{ ->
+                phase {
+                    name "foo"
+                    pipeline {
+                        echo "hello"
+                        if (false) {
+                            node {
+                                stage "never"
+                            }
+                        }
+                    }
+                }
+            }""")
+            fail("Expected invalid steps to fail compilation")
+        } catch (MultipleCompilationErrorsException e) {
+            assertTrue(e.getMessage().contains("Illegal Pipeline steps used in inline Pipeline - node, stage"))
+        }
+    }
+
+    @Test
+    public void testInlinePipelineValidFromString() {
+        def config = new PlumberConfig()
+
+        config.fromString("""{ ->
+            phase {
+                name "foo"
+                pipeline {
+                    sh "Tada"
+                }
+            }
+        }""")
+
+        Phase p = config.getConfig().phases[0]
+        assertNotNull(p.pipeline)
+        assertTrue(p.pipeline.closure instanceof Closure)
+    }
+
+    @Test
+    public void testPhaseOverridesResolvedOnce() {
+        def plumberConfig = new PlumberConfig()
+
+        plumberConfig.fromClosure {
+            env "foo": "bar"
+
+            notifications {
+                config {
+                    name "email"
+                    to "some@one.com"
+                }
+            }
+
+            phase {
+                name "overridePhase"
+                notifications {
+                    onSuccess true
+                }
+                action {
+                    script "echo hello"
+                }
+            }
+        }
+
+        def root = plumberConfig.getConfig()
+        def phase = root.phases.first()
+
+        def overrides = phase.getOverrides(root)
+
+        assertSame(overrides, phase.getOverrides(root))
+        assertEquals(1, phase.getOverrides(root).notifications.configs.size())
+        assertEquals("some@one.com", overrides.notifications.configs.first().to)
+        assertTrue(overrides.notifications.onSuccess)
+
+        // The phase's own notifications are left alone.
+        assertTrue(phase.notifications.configs.isEmpty())
+
+        try {
+            overrides.env.put("foo", "baz")
+            fail("Expected overrides env to be unmodifiable")
+        } catch (UnsupportedOperationException e) {
+            assertEquals("bar", phase.getOverrides(root).env.foo)
+        }
+
+        // Adding to the phase's environment, as matrix expansion does, means resolving again.
+        phase.addToEnv("pants", "trousers")
+        assertNotSame(overrides, phase.getOverrides(root))
+        assertEquals("trousers", phase.getOverrides(root).env.pants)
+    }
+
+    @Test
+    public void testPhaseOverridesFollowConfigChanges() {
+        def plumberConfig = new PlumberConfig()
+
+        plumberConfig.fromClosure {
+            dockerLabel "docker-hosts"
+            notifications {
+                config {
+                    name "email"
+                    to "some@one.com"
+                }
+            }
+            phase {
+                name "pants"
+                action {
+                    script "echo hello"
+                }
+            }
+        }
+
+        def root = plumberConfig.getConfig()
+        def phase = root.phases.first()
+        def overrides = phase.getOverrides(root)
+        assertEquals("docker-hosts", overrides.dockerLabel)
+
+        // Changes to the phase or the root through any of their setters mean resolving again.
+        phase.stashDir("target")
+        assertEquals("target", phase.getOverrides(root).stashDirs)
+
+        root.dockerLabel("big-docker-hosts")
+        assertEquals("big-docker-hosts", phase.getOverrides(root).dockerLabel)
+
+        // The notifications are a copy, even when they come straight from the root.
+        def notifications = phase.getOverrides(root).notifications
+        assertNotSame(root.notifications, notifications)
+        try {
+            notifications.configs.clear()
+            fail("Expected overrides notification configs to be unmodifiable")
+        } catch (UnsupportedOperationException e) {
+            assertEquals(1, root.notifications.configs.size())
+        }
+    }
+
 }
@@ -252,4 +252,118 @@ class PlumberDependencyGraphTest {
         assertEquals("fourth", exSets[3].stageName)
     }
 
+    @Test
+    public void testRemovePhasesRewiresDependencies() {
+        def graph = new PlumberDependencyGraph()
+        graph.addDependency("first", "second")
+        graph.addDependency("second", "third")
+        graph.addPhase("independent")
+
+        graph.removePhases(["second"])
+
+        def graphCopy = graph.getGraphCopy()
+        assertFalse(graphCopy.containsVertex("second"))
+        assertTrue(graphCopy.containsEdge("first", "third"))
+
+        assertEquals(["first", "independent"] as Set, graph.getNextPhases() as Set)
+        graph.postPhaseProcessing(graph.getNextPhases())
+        assertEquals(["third"], graph.getNextPhases())
+    }
+
+    @Test
+    public void testExecutionSetsSkipUnchangedPhases() {
+        def plumberConfig = new PlumberConfig()
+        plumberConfig.fromClosure {
+            phase {
+                name "build"
+                action {
+                    script "echo build"
+                }
+                stashDirs "target/**"
+            }
+            phase {
+                name "docs"
+                action {
+                    script "echo docs"
+                }
+                changes "docs/**"
+                after "build"
+            }
+            phase {
+                name "backend"
+                action {
+                    script "echo backend"
+                }
+                changes "backend"
+                unstash {
+                    fromPhase "build"
+                }
+                after "build"
+            }
+            phase {
+                name "deploy"
+                action {
+                    script "echo deploy"
+                }
+                after "docs", "backend"
+            }
+        }
+
+        def root = plumberConfig.getConfig()
+
+        assertTrue(root.hasChangeFilters())
+        assertEquals(["docs"], root.phasesToSkip(["backend/src/Foo.java"]))
+
+        def exSets = root.executionSets(["backend/src/Foo.java"])
+
+        assertEquals(3, exSets.size())
+        assertEquals("build", exSets[0].stageName)
+        assertEquals("backend", exSets[1].stageName)
+        assertEquals("deploy", exSets[2].stageName)
+
+        // No known changes means everything runs.
+        assertEquals(4, root.executionSets([]).size())
+    }
+
+    @Test
+    public void testSkippedPhasesDropUnneededStashProducers() {
+        def plumberConfig = new PlumberConfig()
+        plumberConfig.fromClosure {
+            phase {
+                name "package"
+                action {
+                    script "echo package"
+                }
+                stashDirs "target/**"
+            }
+            phase {
+                name "deploy"
+                action {
+                    script "echo deploy"
+                }
+                changes "deploy/**"
+                unstash {
+                    fromPhase "package"
+                }
+                after "package"
+            }
+            phase {
+                name "lint"
+                action {
+                    script "echo lint"
+                }
+            }
+        }
+
+        def root = plumberConfig.getConfig()
+
+        // Nothing needs package's stash any more, so it goes too.
+        assertEquals(["package", "deploy"], root.phasesToSkip(["src/Foo.java"]))
+        assertEquals([], root.phasesToSkip(["deploy/run.sh"]))
+
+        // But not if something else that runs comes after it.
+        root.phases << new Phase(name: "docs", after: ["package"])
+        assertEquals(["deploy"], root.phasesToSkip(["src/Foo.java"]))
+    }
+
 }
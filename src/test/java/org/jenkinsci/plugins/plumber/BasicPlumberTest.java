@@ -205,4 +205,70 @@ public class BasicPlumberTest extends AbstractPlumberTest {
         });
     }
 
+    @Test
+    public void testInlinePipelineInvalidStepsNotTaken() throws Exception {
+        prepRepoWithJenkinsfile("inlinePipelineInvalidStepsNotTaken");
+
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowRun b = getAndStartBuild();
+                story.j.assertLogContains("Illegal Pipeline steps used in inline Pipeline - node",
+                        story.j.assertBuildStatus(Result.FAILURE, story.j.waitForCompletion(b)));
+                story.j.assertLogNotContains("Only running the safe branch", b);
+            }
+        });
+    }
+
+    @Test
+    public void testInlinePipelineInvalidStepsInVariable() throws Exception {
+        prepRepoWithJenkinsfile("inlinePipelineInvalidStepsInVariable");
+
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowRun b = getAndStartBuild();
+                story.j.assertLogContains("Illegal Pipeline steps used in inline Pipeline - node",
+                        story.j.assertBuildStatus(Result.FAILURE, story.j.waitForCompletion(b)));
+            }
+        });
+    }
+
+    @Test
+    public void testInlinePipelineClosureVariable() throws Exception {
+        prepRepoWithJenkinsfile("inlinePipelineClosureVariable");
+
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowRun b = getAndStartBuild();
+                story.j.assertLogContains("Illegal Pipeline steps used in inline Pipeline - node",
+                        story.j.assertBuildStatus(Result.FAILURE, story.j.waitForCompletion(b)));
+            }
+        });
+    }
+
+    @Test
+    public void testInlinePipelineFakeValidation() throws Exception {
+        prepRepoWithJenkinsfile("inlinePipelineFakeValidation");
+
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowRun b = getAndStartBuild();
+                story.j.assertLogContains("PipelineValidationCustomizer can't be used in scripts",
+                        story.j.assertBuildStatus(Result.FAILURE, story.j.waitForCompletion(b)));
+            }
+        });
+    }
+
+    @Test
+    public void testInlinePipelineOtherDSL() throws Exception {
+        prepRepoWithJenkinsfile("inlinePipelineOtherDSL");
+
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowRun b = getAndStartBuild();
+                story.j.assertLogContains("not plumber",
+                        story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b)));
+            }
+        });
+    }
+
 }
@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jenkinsci.plugins.plumber;
+
+import hudson.model.Computer;
+import hudson.model.Descriptor;
+import hudson.model.Label;
+import hudson.model.LoadStatistics;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import hudson.slaves.Cloud;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.NodeProvisioner;
+import hudson.slaves.RetentionStrategy;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.Test;
+import org.junit.runners.model.Statement;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertTrue;
+
+public class LookAheadNodesTest extends AbstractPlumberTest {
+    private static final String CLOUD_LABEL = "cloudy";
+    private static final long PROVISION_DELAY_MILLIS = 10000L;
+
+    @Test
+    public void testLookAheadNodes() throws Exception {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                story.j.jenkins.clouds.add(new DelayedCloud(story.j));
+
+                // Without looking ahead, trousers has to wait for its agent to be provisioned once pants is done.
+                WorkflowRun withoutHolds = runLookAheadJob("without-holds", false, 45);
+                story.j.assertLogNotContains("Holding executor", withoutHolds);
+                removeAgents();
+
+                // With it, the agent is provisioned while pants runs, and the hold ends as soon as pants is done.
+                WorkflowRun withHolds = runLookAheadJob("with-holds", true, 45);
+                story.j.assertLogContains("Holding executor for upcoming phase trousers", withHolds);
+                story.j.assertLogNotContains("Gave up executor held", withHolds);
+
+                long waitWithout = trousersQueueWait(withoutHolds);
+                long waitWith = trousersQueueWait(withHolds);
+                assertTrue("Expected trousers to wait for provisioning without holds, waited " + waitWithout + "ms",
+                        waitWithout >= PROVISION_DELAY_MILLIS);
+                assertTrue("Expected holds to save trousers' provisioning time, waited " + waitWith + "ms with and "
+                        + waitWithout + "ms without", waitWith < PROVISION_DELAY_MILLIS);
+            }
+        });
+    }
+
+    @Test
+    public void testNoHoldsOnStaticAgents() throws Exception {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                // One executor for pants, and one already up for trousers - holding it would save nothing.
+                story.j.jenkins.setNumExecutors(1);
+                story.j.createOnlineSlave(Label.get(CLOUD_LABEL));
+
+                WorkflowRun b = runLookAheadJob("static", true, 1);
+                story.j.assertLogContains("No cloud to provision a node for upcoming phase trousers", b);
+                story.j.assertLogNotContains("Holding executor", b);
+                story.j.assertLogContains("twoPhase", b);
+            }
+        });
+    }
+
+    private WorkflowRun runLookAheadJob(String name, boolean lookAhead, int pantsSeconds) throws Exception {
+        String config = pipelineSourceFromResources("lookAheadNodes")
+                .replace("lookAheadNodes true", "lookAheadNodes " + lookAhead)
+                .replace("sleep 45", "sleep " + pantsSeconds);
+
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, name);
+        job.setDefinition(new CpsFlowDefinition(config, true));
+        WorkflowRun b = story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        story.j.assertLogContains("onePhase", b);
+        story.j.assertLogContains("twoPhase", b);
+        return b;
+    }
+
+    private long trousersQueueWait(WorkflowRun b) throws Exception {
+        Matcher m = Pattern.compile("Executor queue wait per phase: .*trousers=([0-9.]+)s")
+                .matcher(JenkinsRule.getLog(b));
+        assertTrue("No queue wait logged for trousers", m.find());
+        return (long) (Double.parseDouble(m.group(1)) * 1000);
+    }
+
+    private void removeAgents() throws Exception {
+        for (Node node : new ArrayList<Node>(story.j.jenkins.getNodes())) {
+            story.j.jenkins.removeNode(node);
+        }
+    }
+
+    /**
+     * Provisions single executor agents for the "cloudy" label, taking a while to do so like a real cloud would.
+     */
+    public static class DelayedCloud extends Cloud {
+        private static final AtomicInteger COUNTER = new AtomicInteger();
+        private final transient JenkinsRule j;
+
+        public DelayedCloud(JenkinsRule j) {
+            super("delayed");
+            this.j = j;
+        }
+
+        @Override
+        public Collection<NodeProvisioner.PlannedNode> provision(Label label, int excessWorkload) {
+            List<NodeProvisioner.PlannedNode> planned = new ArrayList<NodeProvisioner.PlannedNode>();
+            for (int i = 0; i < excessWorkload; i++) {
+                final String name = CLOUD_LABEL + "-" + COUNTER.incrementAndGet();
+                planned.add(new NodeProvisioner.PlannedNode(name,
+                        Computer.threadPoolForRemoting.submit(new Callable<Node>() {
+                            @Override
+                            public Node call() throws Exception {
+                                Thread.sleep(PROVISION_DELAY_MILLIS);
+                                return new DumbSlave(name, "", j.createTmpDir().getPath(), "1", Node.Mode.NORMAL,
+                                        CLOUD_LABEL, j.createComputerLauncher(null), RetentionStrategy.NOOP,
+                                        Collections.<NodeProperty<?>>emptyList());
+                            }
+                        }), 1));
+            }
+            return planned;
+        }
+
+        @Override
+        public boolean canProvision(Label label) {
+            return label != null && CLOUD_LABEL.equals(label.getExpression());
+        }
+    }
+
+    @TestExtension("testLookAheadNodes")
+    public static class DelayedCloudDescriptor extends Descriptor<Cloud> {
+        public DelayedCloudDescriptor() {
+            super(DelayedCloud.class);
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Delayed cloud";
+        }
+    }
+
+    /**
+     * Provisions for whatever's queued straight away, rather than waiting for the load statistics to build up.
+     */
+    @TestExtension("testLookAheadNodes")
+    public static class NoDelayStrategy extends NodeProvisioner.Strategy {
+        @Override
+        public NodeProvisioner.StrategyDecision apply(NodeProvisioner.StrategyState state) {
+            LoadStatistics.LoadStatisticsSnapshot snapshot = state.getSnapshot();
+            int available = snapshot.getAvailableExecutors() + snapshot.getConnectingExecutors()
+                    + state.getPlannedCapacitySnapshot() + state.getAdditionalPlannedCapacity();
+            int needed = snapshot.getQueueLength() - available;
+            if (needed > 0) {
+                for (Cloud cloud : Jenkins.getInstance().clouds) {
+                    if (cloud.canProvision(state.getLabel())) {
+                        state.recordPendingLaunches(cloud.provision(state.getLabel(), needed));
+                        break;
+                    }
+                }
+            }
+            return NodeProvisioner.StrategyDecision.PROVISIONING_COMPLETED;
+        }
+    }
+
+    @TestExtension("testLookAheadNodes")
+    public static class ReviewWhenBuildable extends QueueListener {
+        @Override
+        public void onEnterBuildable(Queue.BuildableItem item) {
+            Label label = item.getAssignedLabel();
+            if (label != null) {
+                label.nodeProvisioner.suggestReviewNow();
+            }
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jenkinsci.plugins.plumber;
+
+import hudson.model.Result;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runners.model.Statement;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs large generated plumber configurations, in both interpreted and generated code modes, and appends how much
+ * controller CPU time, heap and CPS program state each one took to target/plumber-loadtest/results.csv, so that runs
+ * from different commits can be compared. A report with different columns is moved aside first.
+ *
+ * Each configuration is also run as a baseline - the same steps written as plain Pipeline, without plumber - and the
+ * per phase overhead columns are the difference from that baseline, so they leave out what the steps themselves cost.
+ *
+ * Only runs with -Dplumber.loadtest=true. Other settings:
+ * <ul>
+ *     <li>plumber.loadtest.sizes - comma separated phase counts, default "100,500,1000"</li>
+ *     <li>plumber.loadtest.width - phases per level of the generated plan, default 20</li>
+ *     <li>plumber.loadtest.matrixValues - axis values for every 25th phase's matrix, default 4</li>
+ *     <li>plumber.loadtest.executors - executors on the controller, default 8</li>
+ * </ul>
+ */
+public class PlumberLoadTest extends AbstractPlumberTest {
+    private static final String CSV_HEADER = "commit,mode,phases,expandedPhases,result,wallMillis,cpuMillis,"
+            + "heapPeakBytes,programPeakBytes,wallOverheadMillisPerPhase,cpuOverheadMillisPerPhase";
+
+    @Before
+    public void onlyWhenEnabled() {
+        Assume.assumeTrue(Boolean.getBoolean("plumber.loadtest"));
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                story.j.jenkins.setNumExecutors(Integer.getInteger("plumber.loadtest.executors", 8));
+
+                int width = Integer.getInteger("plumber.loadtest.width", 20);
+                int matrixValues = Integer.getInteger("plumber.loadtest.matrixValues", 4);
+                String commit = currentCommit();
+
+                List<String> rows = new ArrayList<String>();
+                List<String> failed = new ArrayList<String>();
+                for (String size : System.getProperty("plumber.loadtest.sizes", "100,500,1000").split(",")) {
+                    int phases = Integer.parseInt(size.trim());
+                    int expandedPhases = expandedPhaseCount(phases, matrixValues);
+
+                    List<Measurement> measurements = new ArrayList<Measurement>();
+                    Measurement baseline = runLoad("baseline", phases, generateBaseline(phases, width, matrixValues));
+                    measurements.add(baseline);
+                    for (boolean codeGen : new boolean[] {false, true}) {
+                        measurements.add(runLoad(codeGen ? "codegen" : "interpreted", phases,
+                                generateConfig(phases, width, matrixValues, codeGen)));
+                    }
+
+                    for (Measurement m : measurements) {
+                        String row = m.toRow(phases, expandedPhases, baseline);
+                        rows.add(commit + "," + row);
+                        if (m.result != Result.SUCCESS) {
+                            failed.add(row);
+                        }
+                    }
+                }
+
+                File report = reportFile();
+                if (!report.exists()) {
+                    FileUtils.writeStringToFile(report, CSV_HEADER + "\n");
+                }
+                FileUtils.writeLines(report, rows, true);
+
+                assertTrue("Load test builds did not succeed: " + failed, failed.isEmpty());
+            }
+        });
+    }
+
+    /**
+     * Gets the report file to append to. If an existing report has different columns, from a run of another version of
+     * this test, it's moved aside to results-&lt;timestamp&gt;.csv and a new report is started, rather than mixing
+     * rows of different formats in one file.
+     */
+    private static File reportFile() throws IOException {
+        File report = new File(System.getProperty("basedir", "."), "target/plumber-loadtest/results.csv");
+        if (report.exists()) {
+            String header;
+            BufferedReader reader = new BufferedReader(new FileReader(report));
+            try {
+                header = reader.readLine();
+            } finally {
+                reader.close();
+            }
+
+            if (!CSV_HEADER.equals(header)) {
+                File old = new File(report.getParentFile(), "results-" + report.lastModified() + ".csv");
+                FileUtils.moveFile(report, old);
+                System.out.println("Load test report columns changed, moved the old report to " + old);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Runs one generated script and measures it.
+     */
+    private Measurement runLoad(String mode, int phases, String script) throws Exception {
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "load-" + mode + "-" + phases);
+        job.setDefinition(new CpsFlowDefinition(script, true));
+
+        System.gc();
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        final AtomicLong heapPeak = new AtomicLong(memory.getHeapMemoryUsage().getUsed());
+
+        long cpuBefore = processCpuTime();
+        long started = System.currentTimeMillis();
+
+        WorkflowRun b = job.scheduleBuild2(0).waitForStart();
+        final File program = new File(b.getRootDir(), "program.dat");
+        final AtomicLong programPeak = new AtomicLong();
+
+        // program.dat is removed when the build completes, so keep an eye on it while it runs. The heap is sampled as
+        // a whole too, since per pool peaks are reached at different times and don't add up to a real high-water mark.
+        Thread watcher = new Thread("plumber-loadtest-watcher") {
+            @Override public void run() {
+                while (!isInterrupted()) {
+                    long size = program.length();
+                    if (size > programPeak.get()) {
+                        programPeak.set(size);
+                    }
+                    long heap = memory.getHeapMemoryUsage().getUsed();
+                    if (heap > heapPeak.get()) {
+                        heapPeak.set(heap);
+                    }
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        watcher.setDaemon(true);
+        watcher.start();
+
+        story.j.waitForCompletion(b);
+        watcher.interrupt();
+        watcher.join();
+
+        Measurement m = new Measurement();
+        m.mode = mode;
+        m.result = b.getResult();
+        m.wallMillis = System.currentTimeMillis() - started;
+        m.cpuMillis = (processCpuTime() - cpuBefore) / 1000000L;
+        m.heapPeakBytes = heapPeak.get();
+        m.programPeakBytes = programPeak.get();
+        return m;
+    }
+
+    /**
+     * Generates a plan of the given number of phases, in levels of the given width. Each phase depends on the phase
+     * in the same position on the level before, and every fifth one on its neighbour there as well. Every 25th phase
+     * has a single axis matrix, every 10th stashes for the phase after it to unstash, and every phase sends
+     * notifications before and after running.
+     */
+    private String generateConfig(int phases, int width, int matrixValues, boolean codeGen) {
+        StringBuilder config = new StringBuilder();
+        config.append(codeGen ? "plumber({ ->\n" : "plumber {\n");
+        config.append("    skipSCM true\n");
+        config.append("    notifications {\n");
+        config.append("        config {\n");
+        config.append("            name \"echoToFileNotifier\"\n");
+        config.append("            file \"notifyOutput\"\n");
+        config.append("        }\n");
+        config.append("        onSuccess true\n");
+        config.append("        beforePhase true\n");
+        config.append("    }\n");
+
+        for (int i = 0; i < phases; i++) {
+            config.append("    phase {\n");
+            config.append("        name \"phase").append(i).append("\"\n");
+
+            if (isMatrix(i)) {
+                config.append("        matrix {\n");
+                config.append("            axes {\n");
+                config.append("                \"AXIS\"");
+                for (int v = 0; v < matrixValues; v++) {
+                    config.append(v == 0 ? " " : ", ").append("\"v").append(v).append("\"");
+                }
+                config.append("\n");
+                config.append("            }\n");
+                config.append("        }\n");
+            }
+
+            if (isStashing(i)) {
+                config.append("        stashDirs \"stash").append(i).append("/**\"\n");
+                config.append("        action {\n");
+                config.append("            script 'mkdir -p stash").append(i).append("; echo phase").append(i)
+                        .append(" > stash").append(i).append("/file'\n");
+                config.append("        }\n");
+            } else {
+                config.append("        action {\n");
+                config.append("            script 'echo phase").append(i).append("'\n");
+                config.append("        }\n");
+            }
+
+            if (i >= width && isStashing(i - width)) {
+                config.append("        unstash {\n");
+                config.append("            fromPhase \"phase").append(i - width).append("\"\n");
+                config.append("        }\n");
+            }
+
+            if (i >= width) {
+                config.append("        after \"phase").append(i - width).append("\"");
+                if (i % 5 == 0 && i % width != 0) {
+                    config.append(", \"phase").append(i - width - 1).append("\"");
+                }
+                config.append("\n");
+            }
+
+            config.append("    }\n");
+        }
+
+        config.append(codeGen ? "}, true)\n" : "}\n");
+        return config.toString();
+    }
+
+    /**
+     * Generates plain Pipeline running the same steps as {@link #generateConfig} would for the same arguments - a
+     * stage per level of the plan with its phases, and every matrix combination, as parallel branches each taking a
+     * node, and the same actions, stashes and notifications.
+     */
+    private String generateBaseline(int phases, int width, int matrixValues) {
+        StringBuilder script = new StringBuilder();
+        script.append("import io.jenkins.plugins.pipelineaction.PipelineActionType\n");
+
+        for (int level = 0; level * width < phases; level++) {
+            script.append("stage 'level").append(level).append("'\n");
+            script.append("parallel(\n");
+
+            int end = Math.min(phases, (level + 1) * width);
+            for (int i = level * width; i < end; i++) {
+                if (isMatrix(i)) {
+                    for (int v = 0; v < matrixValues; v++) {
+                        appendBaselineBranch(script, i, "phase" + i + " [AXIS=v" + v + "]", width);
+                    }
+                } else {
+                    appendBaselineBranch(script, i, "phase" + i, width);
+                }
+            }
+
+            script.append("    failFast: false\n");
+            script.append(")\n");
+        }
+
+        return script.toString();
+    }
+
+    private static void appendBaselineBranch(StringBuilder script, int i, String name, int width) {
+        script.append("    '").append(name).append("': {\n");
+        appendBaselineNotifier(script, name, true);
+        script.append("        node {\n");
+
+        if (i >= width && isStashing(i - width)) {
+            script.append("            dir('phase").append(i - width).append("') {\n");
+            script.append("                unstash 'phase").append(i - width).append("'\n");
+            script.append("            }\n");
+        }
+
+        if (isStashing(i)) {
+            script.append("            runPipelineAction(PipelineActionType.STANDARD, [script: 'mkdir -p stash")
+                    .append(i).append("; echo phase").append(i).append(" > stash").append(i).append("/file'])\n");
+            script.append("            stash name: 'phase").append(i).append("', includes: 'stash").append(i)
+                    .append("/**'\n");
+        } else {
+            script.append("            runPipelineAction(PipelineActionType.STANDARD, [script: 'echo phase").append(i)
+                    .append("'])\n");
+        }
+
+        script.append("        }\n");
+        appendBaselineNotifier(script, name, false);
+        script.append("    },\n");
+    }
+
+    private static void appendBaselineNotifier(StringBuilder script, String name, boolean before) {
+        script.append("        runPipelineAction(PipelineActionType.NOTIFIER, [name: 'echoToFileNotifier', ")
+                .append("file: 'notifyOutput', phaseName: '").append(name).append("', phase: '").append(name)
+                .append("', before: ").append(before).append(", result: 'SUCCESS', ")
+                .append("buildInfo: env.JOB_NAME + currentBuild.displayName])\n");
+    }
+
+    private static boolean isMatrix(int i) {
+        return i % 25 == 3;
+    }
+
+    private static boolean isStashing(int i) {
+        // Never a matrix phase, since those stash under their expanded names.
+        return i % 10 == 0;
+    }
+
+    private static int expandedPhaseCount(int phases, int matrixValues) {
+        int count = 0;
+        for (int i = 0; i < phases; i++) {
+            count += isMatrix(i) ? matrixValues : 1;
+        }
+        return count;
+    }
+
+    private static final class Measurement {
+        String mode;
+        Result result;
+        long wallMillis;
+        long cpuMillis;
+        long heapPeakBytes;
+        long programPeakBytes;
+
+        /**
+         * @return The CSV row for the run, without the commit, with its overhead per phase over the baseline run.
+         */
+        String toRow(int phases, int expandedPhases, Measurement baseline) {
+            return mode + "," + phases + "," + expandedPhases + "," + result + "," + wallMillis + "," + cpuMillis + ","
+                    + heapPeakBytes + "," + programPeakBytes + ","
+                    + ((wallMillis - baseline.wallMillis) / expandedPhases) + ","
+                    + ((cpuMillis - baseline.cpuMillis) / expandedPhases);
+        }
+    }
+
+    /**
+     * @return Nanoseconds of CPU time used by this JVM, which the test Jenkins and its builds run in, or 0 if the JVM
+     *     doesn't tell us.
+     */
+    private static long processCpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return 0L;
+    }
+
+    private static String currentCommit() {
+        String commit = System.getProperty("plumber.loadtest.commit");
+        if (commit != null) {
+            return commit;
+        }
+
+        try {
+            Process git = new ProcessBuilder("git", "rev-parse", "--short", "HEAD").redirectErrorStream(true).start();
+            String output = IOUtils.toString(git.getInputStream()).trim();
+            if (git.waitFor() == 0) {
+                return output;
+            }
+        } catch (Exception e) {
+            // Fall through to unknown.
+        }
+        return "unknown";
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jenkinsci.plugins.plumber;
+
+import hudson.AbortException;
+import hudson.model.Result;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.support.steps.build.RunWrapper;
+import org.junit.Test;
+import org.junit.runners.model.Statement;
+
+import java.io.File;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResumeTest extends AbstractPlumberTest {
+    @Test
+    public void testResumeFromFailure() throws Exception {
+        prepRepoWithJenkinsfile("resumeFromFailure");
+
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowRun b1 = getAndStartBuild();
+                story.j.assertBuildStatus(Result.FAILURE, story.j.waitForCompletion(b1));
+                story.j.assertLogContains("pants ran", b1);
+
+                PlumberRunAction action = b1.getAction(PlumberRunAction.class);
+                assertNotNull(action);
+                assertNotNull(action.getPhase("pants"));
+                assertNotNull(action.getPhase("shirts"));
+
+                WorkflowRun b2 = b1.getParent().scheduleBuild2(0).waitForStart();
+                story.j.assertLogContains("skipping phases already completed: [pants]",
+                        story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b2)));
+                story.j.assertLogContains("PANTStrousers", b2);
+                story.j.assertLogNotContains("pants ran", b2);
+            }
+        });
+    }
+
+    @Test
+    public void testRejectsPhaseNamesOutsideTheBuild() throws Exception {
+        prepRepoWithJenkinsfile("resumeFromFailure");
+
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowRun b1 = getAndStartBuild();
+                story.j.assertBuildStatus(Result.FAILURE, story.j.waitForCompletion(b1));
+
+                // Resolves to the same file from both the stashes and plumber-stashes directories of the build.
+                File outside = new File(b1.getParent().getRootDir(), "outside.tar.gz");
+                assertTrue(outside.createNewFile());
+                try {
+                    PlumberResume.recordPhase(new RunWrapper(b1, false), "../../../outside", "SUCCESS", null, true, 0L);
+                    fail("Expected the phase name to be rejected");
+                } catch (AbortException e) {
+                    // expected
+                }
+                assertTrue(outside.isFile());
+            }
+        });
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+def config = {
+    debug true
+    preserveStashes true
+    phase {
+        name "pants"
+        stashDirs "outputDir/**"
+        action {
+            script 'mkdir -p outputDir; export FOO="trousers"; echo "PANTS${FOO}" > outputDir/outputFile; echo "pants ran"'
+        }
+    }
+    phase {
+        name 'shirts'
+        unstash {
+            fromPhase 'pants'
+        }
+        clean true
+        action {
+            script 'cat outputDir/outputFile; test "$BUILD_NUMBER" != "1"'
+        }
+        after 'pants'
+    }
+}
+
+if (currentBuild.number == 1) {
+    plumber(config)
+} else {
+    plumber.resume(1, config)
+}